@@ -0,0 +1,73 @@
+package org.filestacker.cache;
+
+/**
+ * Count-Min sketch with 4 rows of small counters (saturating at 15), used to
+ * estimate how often a stackid was requested (TinyLFU). Counters are halved
+ * after every 10 * width increments, so old popularity fades away.
+ *
+ * Not thread-safe: each cache segment owns its sketch.
+ *
+ * @author daniel
+ */
+class FrequencySketch {
+
+	private static final int ROWS = 4;
+	private static final int MAX_COUNT = 15;
+	private static final int[] SEEDS = { 0x97cb3127, 0xb3a9a4c5, 0x6f8ad1e3, 0xe1c3b78b };
+
+	private final byte[][] counters;
+	private final int mask;
+	private final int sampleSize;
+	private int additions = 0;
+
+	/**
+	 * @param expectedEntries
+	 *            about how many different keys the owner may hold
+	 */
+	FrequencySketch(int expectedEntries) {
+		int width = Integer.highestOneBit(Math.max(1024, expectedEntries - 1) << 1);
+		counters = new byte[ROWS][width];
+		mask = width - 1;
+		sampleSize = 10 * width;
+	}
+
+	void increment(int key) {
+		boolean added = false;
+		for (int row = 0; row < ROWS; row++) {
+			int index = index(key, row);
+			if (counters[row][index] < MAX_COUNT) {
+				counters[row][index]++;
+				added = true;
+			}
+		}
+
+		if (added && ++additions >= sampleSize) {
+			reset();
+		}
+	}
+
+	int frequency(int key) {
+		int min = MAX_COUNT;
+		for (int row = 0; row < ROWS; row++) {
+			min = Math.min(min, counters[row][index(key, row)]);
+		}
+		return min;
+	}
+
+	private int index(int key, int row) {
+		int h = key * SEEDS[row];
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		return h & mask;
+	}
+
+	private void reset() {
+		for (byte[] row : counters) {
+			for (int i = 0; i < row.length; i++) {
+				row[i] >>= 1;
+			}
+		}
+		additions /= 2;
+	}
+}
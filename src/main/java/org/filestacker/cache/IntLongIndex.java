@@ -0,0 +1,94 @@
+package org.filestacker.cache;
+
+import java.util.Arrays;
+
+import org.filestacker.utils.NameIndex;
+
+/**
+ * Hash map from a non-negative int (a stackid) to a long, with no boxed
+ * Integer, Long or entry object per key. The table is a {@link NameIndex}
+ * keyed by the int, whose values point into a primitive array of the longs.
+ *
+ * Not thread-safe.
+ *
+ * @author daniel
+ */
+final class IntLongIndex {
+
+	/**
+	 * Returned by get and remove for a missing key, so it must not be used as
+	 * a value.
+	 */
+	static final long NOT_FOUND = -1L;
+
+	/**
+	 * Chave -> posicao em values. A chave vai no low do nome, com high 0.
+	 */
+	private final NameIndex slots = new NameIndex(16);
+	private long[] values = new long[16];
+	/**
+	 * Posicoes de values liberadas pelo remove, reusadas antes de top.
+	 */
+	private int[] free = new int[16];
+	private int freeCount = 0;
+	private int top = 0;
+
+	/**
+	 * @return the value, or NOT_FOUND
+	 */
+	long get(int key) {
+		int slot = slots.get(0L, key);
+		return slot == NameIndex.NOT_FOUND ? NOT_FOUND : values[slot];
+	}
+
+	/**
+	 * @param key
+	 *            must not be negative
+	 */
+	void put(int key, long value) {
+		if (key < 0) {
+			throw new IllegalArgumentException("negative key " + key);
+		}
+
+		int slot = slots.get(0L, key);
+		if (slot == NameIndex.NOT_FOUND) {
+			slot = (freeCount > 0) ? free[--freeCount] : newSlot();
+			slots.put(0L, key, slot);
+		}
+		values[slot] = value;
+	}
+
+	private int newSlot() {
+		if (top == values.length) {
+			values = Arrays.copyOf(values, top << 1);
+		}
+		return top++;
+	}
+
+	/**
+	 * @return the removed value, or NOT_FOUND
+	 */
+	long remove(int key) {
+		int slot = slots.remove(0L, key);
+		if (slot == NameIndex.NOT_FOUND) { return NOT_FOUND; }
+
+		if (freeCount == free.length) {
+			free = Arrays.copyOf(free, freeCount << 1);
+		}
+		free[freeCount++] = slot;
+		return values[slot];
+	}
+
+	/**
+	 * Remove todas as chaves, mantendo a capacidade atual.
+	 */
+	void clear() {
+		slots.clear();
+		freeCount = 0;
+		top = 0;
+	}
+
+	int size() {
+		return slots.size();
+	}
+}
@@ -0,0 +1,266 @@
+package org.filestacker.cache;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * RecordCache kept off the Java heap, in direct memory, so multi-GB caches do
+ * not hurt the GC.
+ *
+ * The memory is split in slabs (4MB by default). Files are appended to the
+ * current slab; when there is no free slab left, the least recently used slab
+ * is evicted as a whole and reused. Invalidated files leave a hole in their
+ * slab until it is evicted.
+ *
+ * Direct memory is allocated on demand, slab by slab, and is only given back
+ * to the OS when the cache itself is garbage collected. The index of each
+ * segment is a primitive table ({@link IntLongIndex}), with no object per
+ * cached file.
+ *
+ * @author daniel
+ */
+public class OffHeapRecordCache implements RecordCache {
+
+	public static final int DEFAULT_SLAB_SIZE = 4 * 1024 * 1024;
+	/**
+	 * Limite do empacotamento do indice: offset e tamanho com 24 bits (um
+	 * arquivo do tamanho do slab precisa caber no tamanho).
+	 */
+	public static final int MAX_SLAB_SIZE = (1 << 24) - 1;
+	private static final int MAX_SEGMENTS = 16;
+	/**
+	 * Com poucos slabs por segmento, o LRU de slabs perde o sentido.
+	 */
+	private static final int MIN_SLABS_PER_SEGMENT = 4;
+
+	private final Segment[] segments;
+	private final int slabSize;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	public OffHeapRecordCache(long maxBytes) {
+		this(maxBytes, DEFAULT_SLAB_SIZE);
+	}
+
+	public OffHeapRecordCache(long maxBytes, int slabSize) {
+		if (slabSize <= 0 || slabSize > MAX_SLAB_SIZE) {
+			throw new IllegalArgumentException("slabSize should be in (0, " + MAX_SLAB_SIZE + "]");
+		}
+		this.slabSize = slabSize;
+
+		long totalSlabs = Math.max(1, maxBytes / slabSize);
+		int nsegments = (int) Math.max(1, Math.min(MAX_SEGMENTS, totalSlabs / MIN_SLABS_PER_SEGMENT));
+		segments = new Segment[nsegments];
+		for (int i = 0; i < nsegments; i++) {
+			segments[i] = new Segment((int) Math.min(0xFFFF, totalSlabs / nsegments));
+		}
+	}
+
+	private Segment segment(int stackid) {
+		int h = stackid * 0x9E3779B9;
+		return segments[((h ^ (h >>> 16)) & Integer.MAX_VALUE) % segments.length];
+	}
+
+	@Override
+	public byte[] get(int stackid) {
+		Segment segment = segment(stackid);
+		byte[] data;
+		synchronized (segment) {
+			data = segment.get(stackid);
+		}
+
+		if (data == null) {
+			misses.increment();
+		} else {
+			hits.increment();
+		}
+		return data;
+	}
+
+	@Override
+	public void put(int stackid, byte[] data) {
+		if (data.length > slabSize) { return; }
+
+		Segment segment = segment(stackid);
+		synchronized (segment) {
+			segment.put(stackid, data);
+		}
+	}
+
+	@Override
+	public void invalidate(int stackid) {
+		Segment segment = segment(stackid);
+		synchronized (segment) {
+			segment.remove(stackid);
+		}
+	}
+
+	@Override
+	public void clear() {
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				segment.clear();
+			}
+		}
+	}
+
+	@Override
+	public long getSize() {
+		long size = 0;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				size += segment.liveBytes;
+			}
+		}
+		return size;
+	}
+
+	@Override
+	public long getHits() {
+		return hits.sum();
+	}
+
+	@Override
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	@Override
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	/**
+	 * Indice: slab (16 bits) | offset (24 bits) | tamanho (24 bits). O slab
+	 * nunca passa de 0xFFFE, entao nenhum valor e' IntLongIndex.NOT_FOUND.
+	 */
+	private static long pack(int slab, int offset, int length) {
+		return ((long) slab << 48) | ((long) offset << 24) | length;
+	}
+
+	private final class Segment {
+		final IntLongIndex index = new IntLongIndex();
+		final ByteBuffer[] slabs;
+		/**
+		 * Tick do ultimo acesso de cada slab, para achar o LRU.
+		 */
+		final long[] lastAccess;
+		final int[] liveFiles;
+		/**
+		 * Stackids gravados em cada slab (alguns podem ja ter sido
+		 * invalidados), para despejar sem varrer o indice inteiro.
+		 */
+		final int[][] slabKeys;
+		final int[] slabKeyCount;
+		int current = 0;
+		int used = 0;
+		long tick = 0;
+		long liveBytes = 0;
+
+		Segment(int nslabs) {
+			slabs = new ByteBuffer[nslabs];
+			lastAccess = new long[nslabs];
+			liveFiles = new int[nslabs];
+			slabKeys = new int[nslabs][16];
+			slabKeyCount = new int[nslabs];
+		}
+
+		byte[] get(int stackid) {
+			long location = index.get(stackid);
+			if (location == IntLongIndex.NOT_FOUND) { return null; }
+
+			int slab = (int) (location >>> 48);
+			int offset = (int) (location >>> 24) & 0xFFFFFF;
+			byte[] data = new byte[(int) (location & 0xFFFFFF)];
+
+			ByteBuffer view = slabs[slab].duplicate();
+			((Buffer) view).position(offset);
+			view.get(data);
+			lastAccess[slab] = ++tick;
+			return data;
+		}
+
+		void put(int stackid, byte[] data) {
+			remove(stackid);
+
+			if (slabs[current] == null) {
+				slabs[current] = ByteBuffer.allocateDirect(slabSize);
+			} else if (used + data.length > slabSize) {
+				nextSlab();
+			}
+
+			ByteBuffer view = slabs[current].duplicate();
+			((Buffer) view).position(used);
+			view.put(data);
+
+			index.put(stackid, pack(current, used, data.length));
+			if (slabKeyCount[current] == slabKeys[current].length) {
+				slabKeys[current] = Arrays.copyOf(slabKeys[current], slabKeys[current].length * 2);
+			}
+			slabKeys[current][slabKeyCount[current]++] = stackid;
+			used += data.length;
+			liveFiles[current]++;
+			liveBytes += data.length;
+			lastAccess[current] = ++tick;
+		}
+
+		/**
+		 * Vai para um slab ainda nao alocado ou, se todos estao em uso, despeja
+		 * o slab menos usado recentemente e o reaproveita.
+		 */
+		private void nextSlab() {
+			for (int i = 0; i < slabs.length; i++) {
+				if (slabs[i] == null) {
+					slabs[i] = ByteBuffer.allocateDirect(slabSize);
+					current = i;
+					used = 0;
+					return;
+				}
+			}
+
+			int victim = 0;
+			for (int i = 1; i < slabs.length; i++) {
+				if (lastAccess[i] < lastAccess[victim]) {
+					victim = i;
+				}
+			}
+			evict(victim);
+			current = victim;
+			used = 0;
+		}
+
+		private void evict(int slab) {
+			for (int i = 0; i < slabKeyCount[slab]; i++) {
+				long location = index.get(slabKeys[slab][i]);
+				if (location != IntLongIndex.NOT_FOUND && (int) (location >>> 48) == slab) {
+					index.remove(slabKeys[slab][i]);
+					liveBytes -= location & 0xFFFFFF;
+				}
+			}
+			evictions.add(liveFiles[slab]);
+			liveFiles[slab] = 0;
+			slabKeyCount[slab] = 0;
+		}
+
+		void remove(int stackid) {
+			long location = index.remove(stackid);
+			if (location != IntLongIndex.NOT_FOUND) {
+				liveFiles[(int) (location >>> 48)]--;
+				liveBytes -= location & 0xFFFFFF;
+			}
+		}
+
+		void clear() {
+			index.clear();
+			Arrays.fill(liveFiles, 0);
+			Arrays.fill(lastAccess, 0);
+			Arrays.fill(slabKeyCount, 0);
+			current = 0;
+			used = 0;
+			liveBytes = 0;
+		}
+	}
+}
@@ -0,0 +1,38 @@
+package org.filestacker.cache;
+
+/**
+ * Cache of files in front of a Stacker, keyed by stackid.
+ *
+ * Implementations must be thread-safe and must not share the arrays given to
+ * put() or returned by get() with the caller, since both sides may change
+ * them.
+ *
+ * @author daniel
+ */
+public interface RecordCache {
+
+	/**
+	 * @return the cached data, or null if not cached
+	 */
+	public byte[] get(int stackid);
+
+	/**
+	 * Offers data to the cache. It may be refused by the eviction policy.
+	 */
+	public void put(int stackid, byte[] data);
+
+	public void invalidate(int stackid);
+
+	public void clear();
+
+	/**
+	 * @return the bytes currently cached
+	 */
+	public long getSize();
+
+	public long getHits();
+
+	public long getMisses();
+
+	public long getEvictions();
+}
@@ -0,0 +1,205 @@
+package org.filestacker.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * On-heap RecordCache limited by a byte budget, with a W-TinyLFU eviction
+ * policy: new files enter a small LRU window (1% of the budget) and, when
+ * pushed out of it, only replace the LRU victim of the main area if they
+ * were requested more often than it (estimated by a {@link FrequencySketch}).
+ * Good for skewed access patterns, where a few files are very hot.
+ *
+ * The cache is split in segments by stackid, each one with its own lock,
+ * budget and sketch.
+ *
+ * @author daniel
+ */
+public class TinyLfuRecordCache implements RecordCache {
+
+	private static final int DEFAULT_SEGMENTS = 16;
+	/**
+	 * Usado somente para dimensionar o sketch de frequencias.
+	 */
+	private static final int AVERAGE_FILE_SIZE = 4 * 1024;
+
+	private final Segment[] segments;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	public TinyLfuRecordCache(long maxBytes) {
+		this(maxBytes, DEFAULT_SEGMENTS);
+	}
+
+	public TinyLfuRecordCache(long maxBytes, int nsegments) {
+		segments = new Segment[nsegments];
+		for (int i = 0; i < nsegments; i++) {
+			segments[i] = new Segment(maxBytes / nsegments);
+		}
+	}
+
+	private Segment segment(int stackid) {
+		int h = stackid * 0x9E3779B9;
+		return segments[((h ^ (h >>> 16)) & Integer.MAX_VALUE) % segments.length];
+	}
+
+	@Override
+	public byte[] get(int stackid) {
+		Segment segment = segment(stackid);
+		byte[] data;
+		synchronized (segment) {
+			data = segment.get(stackid);
+		}
+
+		if (data == null) {
+			misses.increment();
+			return null;
+		}
+		hits.increment();
+		return data.clone();
+	}
+
+	@Override
+	public void put(int stackid, byte[] data) {
+		Segment segment = segment(stackid);
+		if (data.length > segment.mainMax) { return; }
+
+		byte[] copy = data.clone();
+		synchronized (segment) {
+			segment.put(stackid, copy);
+		}
+	}
+
+	@Override
+	public void invalidate(int stackid) {
+		Segment segment = segment(stackid);
+		synchronized (segment) {
+			segment.remove(stackid);
+		}
+	}
+
+	@Override
+	public void clear() {
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				segment.clear();
+			}
+		}
+	}
+
+	@Override
+	public long getSize() {
+		long size = 0;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				size += segment.windowSize + segment.mainSize;
+			}
+		}
+		return size;
+	}
+
+	@Override
+	public long getHits() {
+		return hits.sum();
+	}
+
+	@Override
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	@Override
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	private final class Segment {
+		// Access order: o primeiro e' sempre o LRU
+		final LinkedHashMap<Integer, byte[]> window = new LinkedHashMap<Integer, byte[]>(16, 0.75f, true);
+		final LinkedHashMap<Integer, byte[]> main = new LinkedHashMap<Integer, byte[]>(16, 0.75f, true);
+		final long windowMax;
+		final long mainMax;
+		long windowSize = 0;
+		long mainSize = 0;
+		final FrequencySketch sketch;
+
+		Segment(long maxBytes) {
+			windowMax = Math.max(1, maxBytes / 100);
+			mainMax = maxBytes - windowMax;
+			sketch = new FrequencySketch((int) Math.min(Integer.MAX_VALUE / 2, maxBytes / AVERAGE_FILE_SIZE));
+		}
+
+		byte[] get(int stackid) {
+			sketch.increment(stackid);
+			byte[] data = window.get(stackid);
+			return data != null ? data : main.get(stackid);
+		}
+
+		void put(int stackid, byte[] data) {
+			remove(stackid);
+			window.put(stackid, data);
+			windowSize += data.length;
+
+			// Quem sai da janela disputa uma vaga no main
+			Iterator<Map.Entry<Integer, byte[]>> it = window.entrySet().iterator();
+			while (windowSize > windowMax && it.hasNext()) {
+				Map.Entry<Integer, byte[]> candidate = it.next();
+				it.remove();
+				windowSize -= candidate.getValue().length;
+				admit(candidate.getKey(), candidate.getValue());
+			}
+		}
+
+		/**
+		 * O candidato disputa somente com a primeira vitima (o LRU do main),
+		 * antes de qualquer remocao: se ganhar, saem quantas vitimas forem
+		 * precisas para ele caber. Cabe sempre, pois put recusa arquivos
+		 * maiores que mainMax.
+		 */
+		private void admit(int stackid, byte[] data) {
+			Iterator<Map.Entry<Integer, byte[]>> it = main.entrySet().iterator();
+			if (mainSize + data.length > mainMax) {
+				Map.Entry<Integer, byte[]> victim = it.next();
+				if (sketch.frequency(stackid) <= sketch.frequency(victim.getKey())) {
+					// O candidato perde: ele e' que sai do cache
+					evictions.increment();
+					return;
+				}
+
+				while (true) {
+					it.remove();
+					mainSize -= victim.getValue().length;
+					evictions.increment();
+					if (mainSize + data.length <= mainMax) {
+						break;
+					}
+					victim = it.next();
+				}
+			}
+
+			main.put(stackid, data);
+			mainSize += data.length;
+		}
+
+		void remove(int stackid) {
+			byte[] old = window.remove(stackid);
+			if (old != null) {
+				windowSize -= old.length;
+			}
+			old = main.remove(stackid);
+			if (old != null) {
+				mainSize -= old.length;
+			}
+		}
+
+		void clear() {
+			window.clear();
+			main.clear();
+			windowSize = 0;
+			mainSize = 0;
+		}
+	}
+}
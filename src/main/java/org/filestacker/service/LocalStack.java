@@ -1,16 +1,37 @@
 package org.filestacker.service;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.DataOutput;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.log4j.Logger;
+import org.filestacker.utils.BloomFilter;
+import org.filestacker.utils.NameHasher;
 import org.filestacker.utils.StackUtils;
 
 public class LocalStack implements Stack {
@@ -31,22 +52,99 @@ public class LocalStack implements Stack {
 	 * depois ao arquivo da stack.
 	 */
 	private DataOutputStream out;
+	/**
+	 * Appends direto no arquivo da stack, depois do header ja reservado, em
+	 * vez do arquivo temporario. Ver {@link #setInPlaceAppends(boolean)}.
+	 */
+	private boolean inPlaceAppends = false;
+	/**
+	 * O arquivo da stack ja tem o header inteiro (DATA_OFFSET bytes).
+	 */
+	private boolean headerReserved = false;
+	/**
+	 * Quantas posicoes (offsets e nomes) ja estao gravadas no header do
+	 * arquivo: as demais so existem em memoria.
+	 */
+	private int writtenPosition = 0;
+	/**
+	 * Houve escritas no arquivo da stack desde o ultimo {@link #sync()}.
+	 */
+	private boolean unsynced = false;
+	/**
+	 * Read-only channel for positional reads (no seek), shared by any number
+	 * of reader threads.
+	 */
+	private volatile FileChannel reader;
+	/**
+	 * Read-only mapping of the stack file, only used once the stack is sealed
+	 * and mappedReads is on.
+	 */
+	private volatile MappedByteBuffer mapped;
+	private boolean mappedReads = false;
+	/**
+	 * Channel for the asynchronous reads, bound to ioExecutor.
+	 */
+	private volatile AsynchronousFileChannel asyncReader;
+	private ExecutorService ioExecutor = null;
 
 	// Estruturas de Dados do Header da stack: protected para serem visiveis
 	// pelo stackerEntry
 	/**
 	 * Ponteiros com as posicões dos arquivos. 1 int para cada arquivo
 	 */
-	protected int[] offsets = null;
+	protected volatile int[] offsets = null;
 	/**
 	 * Estado dos arquivos: deletados ou no. 1 bit para cada arquivo (1 int =
 	 * 32 arquivos)
 	 */
 	protected int[] statusFiles = null;
 	/**
-	 * Vetorzo com todos os nomes de arquivos hasheados. 16 bytes por arquivo.
+	 * Nomes de arquivos hasheados, um atras do outro: 16 bytes por arquivo,
+	 * o da posicao i em [i * HASHEDNAME_SIZE, (i + 1) * HASHEDNAME_SIZE).
+	 * Cresce com os appends, ate MAX_FILES nomes.
+	 */
+	protected volatile byte[] hashedNames = null;
+	/**
+	 * Ultimo acesso aos offsets (System.nanoTime), para o LRU de headers.
+	 */
+	protected volatile long lastAccess = 0;
+	/**
+	 * Quantos headers (offsets) estao carregados, compartilhado pelas stacks
+	 * de um Stacker. Pode ser null.
 	 */
-	protected byte[][] hashedNames = null;
+	private AtomicInteger loadedHeaders = null;
+
+	/**
+	 * Capacidade inicial de hashedNames de uma stack nova, em nomes.
+	 */
+	private static final int INITIAL_NAMES = 1024;
+
+	/**
+	 * Tabela hash (open addressing) dos nomes desta stack: position + 1 de
+	 * cada nome, 0 marca uma posicao livre. Montada no primeiro
+	 * {@link #find(byte[])}, a partir dos hashedNames ja em memoria, e
+	 * descartada junto com eles.
+	 */
+	private char[] nameTable = null;
+	private int nameTableSize = 0;
+
+	/**
+	 * Bloom filter dos nomes desta stack (inclusive os deletados), que fica em
+	 * memoria mesmo com o header descarregado. Montado no primeiro
+	 * {@link #mightContain(byte[])} e gravado ao lado da stack, ver
+	 * StackUtils.getFilterFile.
+	 */
+	private volatile BloomFilter nameFilter = null;
+	/**
+	 * O filtro em memoria difere do arquivo (ou o UPDATE TIME mudou).
+	 */
+	private boolean nameFilterDirty = false;
+	/**
+	 * Hash dos nomes desta stack, gravado no header. Null somente se o header
+	 * tiver um id desconhecido.
+	 */
+	private NameHasher nameHasher = NameHasher.MD5;
+	private static final int FILTER_MAGIC = 0x4653424C; // FSBL
 	/**
 	 * Dados opcionais, escritos no cabecalho
 	 */
@@ -54,7 +152,7 @@ public class LocalStack implements Stack {
 	/**
 	 * A próxima posico para append na stack.
 	 */
-	protected int nextPosition = 0;
+	protected volatile int nextPosition = 0;
 	/**
 	 * Quantidade de arquivos nesta stack.
 	 */
@@ -65,12 +163,32 @@ public class LocalStack implements Stack {
 	protected long stackLength = 0;
 
 	protected long creationTime = 0;
+	/**
+	 * Ultima alteracao gravada no arquivo da stack.
+	 */
+	protected long updateTime = 0;
+	/**
+	 * Stack cheia (MAX_FILES ou MAX_SIZE): nunca mais recebera appends.
+	 */
+	protected volatile boolean sealed = false;
 	/**
 	 * O id do primeiro campo desta stack.
 	 */
 	protected int firstStackId;
 
 	public final static byte FILL_CHAR = (byte) 32;
+
+	/**
+	 * Multi-get: arquivos separados por ate BATCH_MAX_GAP bytes sao lidos
+	 * numa mesma leitura, de no maximo BATCH_MAX_READ bytes.
+	 */
+	public final static int BATCH_MAX_GAP = 16 * 1024;
+	public final static int BATCH_MAX_READ = 1024 * 1024;
+	/**
+	 * Buffer do arquivo temporario dos appends: com arquivos de poucos KB, o
+	 * buffer padrao (8KB) iria para o disco a cada um ou dois appends.
+	 */
+	public final static int APPEND_BUFFER = 256 * 1024;
 	
 	/**
 	 * Construtor utilizado para construir uma nova stack.
@@ -84,11 +202,13 @@ public class LocalStack implements Stack {
 		file = StackUtils.generateStackFile(firstStackId, path);
 
 		creationTime = System.currentTimeMillis();
+		updateTime = creationTime;
 
 		if (!file.exists()) {
 			logger.debug("new(): " + file.getName());
 		} else if (file.canWrite() && file.canRead()) {
 			boolean deleted = file.delete();
+			StackUtils.getFilterFile(file).delete();
 			logger.debug("new(): file " + file.getAbsolutePath() + " already exists. "
 					+ (deleted ? "Lets overwrite." : "And could no be overwrited."));
 		} else {
@@ -101,6 +221,15 @@ public class LocalStack implements Stack {
 	}
 
 	public static LocalStack loadStack(File file) throws IOException {
+		return loadStack(file, false);
+	}
+
+	/**
+	 * @param lazyHeader
+	 *            if true, only the status of the files is loaded now; the
+	 *            offsets and names are loaded on first access
+	 */
+	public static LocalStack loadStack(File file, boolean lazyHeader) throws IOException {
 		if (!file.exists()) { 
 			throw new FileNotFoundException("stack file not found"); 
 		}
@@ -109,7 +238,11 @@ public class LocalStack implements Stack {
 			throw new IOException("stack file should have read and write permissions"); 
 		}
 
-		return new LocalStack(file);
+		LocalStack stack = new LocalStack(file, lazyHeader);
+		if (stack.nameHasher == null) { 
+			throw new IOException("unknown name hash in stack " + file); 
+		}
+		return stack;
 	}
 
 	/**
@@ -117,10 +250,10 @@ public class LocalStack implements Stack {
 	 * 
 	 * @param file
 	 */
-	private LocalStack(File file) {
+	private LocalStack(File file, boolean lazyHeader) {
 		// Aponta o objeto que referencia o arquivo da stack
 		this.file = file;
-		loadStack();
+		loadStack(lazyHeader);
 	}
 
 	public int getNumFiles() {
@@ -135,55 +268,198 @@ public class LocalStack implements Stack {
 		return file;
 	}
 
+	public long getUpdateTime() {
+		return updateTime;
+	}
+
+	public NameHasher getNameHasher() {
+		return nameHasher;
+	}
+
 	/**
-	 * Carrega index, status e namespace
+	 * Somente para stacks novas, antes do primeiro append: os nomes ja
+	 * gravados nao mudam de hash.
 	 */
-	protected void reloadHeader() throws IOException {
-		open();
+	public void setNameHasher(NameHasher nameHasher) {
+		if (nextPosition > 0) {
+			throw new IllegalStateException("stack " + file + " already has names hashed with " + this.nameHasher);
+		}
+		this.nameHasher = nameHasher;
+	}
 
-		// Se o arquivo da stack exister e tiver dados, recarregue os dados
-		if (inout != null && nextPosition > 0) {
-			// ### LOAD OFFSETS
-			// O tamanho exato do indice
-			byte[] buffer = new byte[INDEX_SIZE];
-			// Salta para a posico do indice
-			inout.seek(HEADER_SIZE);
-			// Carrega o indice para um vetor de bytes
-			inout.read(buffer);
-			// Converte em um vetor de inteiros
-			offsets = StackUtils.byteArrayToIntArray(buffer);
-
-			if (offsets.length != MAX_FILES + 1) {
-				logger.warn("offsets.length = " + offsets.length
-						+ " / MAX_FILES+1 = " + MAX_FILES + 1);
-			}
+	public boolean isSealed() {
+		return sealed;
+	}
 
-			// ### LOAD STATUS
-			// Defensiva...
-			inout.seek(STATUS_OFFSET);
-			statusFiles = new int[STATUS_SIZE / 4];
-			for (int i = 0; i < STATUS_SIZE / 4; i++) {
-				statusFiles[i] = inout.readInt();
-			}
-			numFiles = nextPosition - getDeleteds().size();
+	/**
+	 * @return true if there are appends not yet written to the stack file
+	 *         (see {@link #writeStack()})
+	 */
+	public boolean hasPendingAppends() {
+		return out != null;
+	}
 
-			// ### LOAD NAMESPACE
-			inout.seek(NAMESPACE_OFFSET);
-			hashedNames = new byte[MAX_FILES][HASHEDNAME_SIZE];
-			for (int i = 0; i < nextPosition; i++) {
-				int readed = inout.read(hashedNames[i]);
-				if (readed != hashedNames[i].length) 
-					logger.warn("Esperava ler " + hashedNames[i].length + "bytes, mas s� leu " + readed);
+	/**
+	 * Marca a stack como cheia. Deve ser chamado somente com os dados ja
+	 * escritos no arquivo da stack. O filtro de nomes nao muda mais: ja e'
+	 * gravado aqui, sem esperar o close.
+	 */
+	public void seal() {
+		sealed = true;
+		writeNameFilter();
+	}
+
+	public void setMappedReads(boolean mappedReads) {
+		this.mappedReads = mappedReads;
+	}
+
+	/**
+	 * If true, appends write the data straight into the stack file, at its
+	 * end, instead of a temporary file merged by {@link #writeStack()}. The
+	 * data can be read as soon as append returns; writeStack only writes the
+	 * header bytes changed by the appends since the last one. Must be set
+	 * before the first append.
+	 */
+	public void setInPlaceAppends(boolean inPlaceAppends) {
+		if (out != null) {
+			throw new IllegalStateException("stack " + file + " has appends in " + StackUtils.getTempFile(file));
+		}
+		this.inPlaceAppends = inPlaceAppends;
+	}
+
+	public void setIoExecutor(ExecutorService ioExecutor) {
+		this.ioExecutor = ioExecutor;
+	}
+
+	public synchronized void setLoadedHeaders(AtomicInteger loadedHeaders) {
+		this.loadedHeaders = loadedHeaders;
+		if (loadedHeaders != null && offsets != null) {
+			loadedHeaders.incrementAndGet();
+		}
+	}
+
+	public boolean isHeaderLoaded() {
+		return offsets != null;
+	}
+
+	public long getLastAccess() {
+		return lastAccess;
+	}
+
+	/**
+	 * Offsets da stack, recarregando o header se ele foi descarregado (ver
+	 * {@link #unloadHeader()}). Os leitores sem lock usam sempre o array
+	 * devolvido, nunca o campo, que pode virar null a qualquer momento.
+	 */
+	protected int[] index() throws IOException {
+		int[] current = offsets;
+		if (current == null) {
+			synchronized (this) {
+				current = offsets;
+				if (current == null) {
+					reloadHeader();
+					current = offsets;
+				}
 			}
+		}
+		lastAccess = System.nanoTime();
+		return current;
+	}
+
+	/**
+	 * Descarta offsets e hashedNames, que serao recarregados do arquivo no
+	 * proximo acesso; o status (4KB) fica. Somente stacks seladas: a ultima
+	 * pode ter dados que ainda nao foram escritos no arquivo. Quem escreve
+	 * na stack deve segurar o lock da StackerEntry, que tambem protege esta
+	 * chamada.
+	 * 
+	 * @return true se o header foi descarregado
+	 */
+	public synchronized boolean unloadHeader() {
+		if (!sealed || offsets == null) { return false; }
+
+		offsets = null;
+		hashedNames = null;
+		nameTable = null;
+		if (loadedHeaders != null) {
+			loadedHeaders.decrementAndGet();
+		}
+		return true;
+	}
+
+	/**
+	 * Carrega index, status e namespace. Usa leituras posicionais, sem o seek
+	 * do RandomAccessFile usado pelas escritas, para que leitores sem o lock
+	 * da StackerEntry possam recarregar um header descarregado.
+	 */
+	protected synchronized void reloadHeader() throws IOException {
+		boolean loaded = offsets != null;
+
+		// Se o arquivo da stack tiver dados, recarregue os dados
+		if (nextPosition > 0) {
+			// ### LOAD OFFSETS + STATUS, que sao vizinhos no header
+			ByteBuffer buffer = ByteBuffer.allocate(INDEX_SIZE + STATUS_SIZE);
+			readFully(buffer, HEADER_SIZE);
+			((Buffer) buffer).flip();
+
+			int[] index = new int[MAX_FILES + 1];
+			buffer.asIntBuffer().get(index);
+			((Buffer) buffer).position(INDEX_SIZE);
+			int[] status = new int[STATUS_SIZE / 4];
+			buffer.asIntBuffer().get(status);
+
+			// ### LOAD NAMESPACE, numa leitura so
+			byte[] names = new byte[nextPosition * HASHEDNAME_SIZE];
+			readFully(ByteBuffer.wrap(names), NAMESPACE_OFFSET);
+
+			statusFiles = status;
+			numFiles = nextPosition - countDeleted(status);
+			hashedNames = names;
+			nameTable = null;
+			// Por ultimo: os leitores sem lock olham somente para offsets
+			offsets = index;
 		} else {
 			stackLength = DATA_OFFSET;
-			offsets = new int[MAX_FILES + 1];
-			offsets[0] = DATA_OFFSET;
 			statusFiles = new int[STATUS_SIZE / 4];
-			hashedNames = new byte[MAX_FILES][HASHEDNAME_SIZE];
+			hashedNames = new byte[INITIAL_NAMES * HASHEDNAME_SIZE];
+			nameTable = null;
+			int[] index = new int[MAX_FILES + 1];
+			index[0] = DATA_OFFSET;
+			offsets = index;
+		}
+
+		if (!loaded && loadedHeaders != null) {
+			loadedHeaders.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Carrega somente o status dos arquivos (modo lazy). Chamado somente pelo
+	 * loadStack, com o arquivo ja aberto.
+	 */
+	private void loadStatus() throws IOException {
+		int[] status = new int[STATUS_SIZE / 4];
+		if (nextPosition > 0) {
+			byte[] buffer = new byte[STATUS_SIZE];
+			inout.seek(STATUS_OFFSET);
+			inout.readFully(buffer);
+			ByteBuffer.wrap(buffer).asIntBuffer().get(status);
 		}
+		statusFiles = status;
+		numFiles = nextPosition - countDeleted(status);
+	}
 
-		// TODO carregar valores em LOAD
+	private int countDeleted(int[] status) {
+		int count = 0;
+		for (int block = 0; block * Integer.SIZE < nextPosition; block++) {
+			int bits = status[block];
+			int valid = nextPosition - block * Integer.SIZE;
+			if (valid < Integer.SIZE) {
+				bits &= (1 << valid) - 1;
+			}
+			count += Integer.bitCount(bits);
+		}
+		return count;
 	}
 
 	public List<StackFreeSlot> getDeleteds() {
@@ -207,19 +483,35 @@ public class LocalStack implements Stack {
 	}
 
 	protected int[] getIndex() throws IOException {
-		if (offsets == null && nextPosition > 0) {
-			reloadHeader();
+		if (nextPosition == 0) {
+			return offsets;
 		}
-		return offsets;
+		return index();
 	}
 
 	public boolean append(String filename, byte[] filedata) {
+		return append(nameHasher.hash(filename), filedata);
+	}
+
+	/**
+	 * @param hashedName
+	 *            the name already hashed with {@link #getNameHasher()}
+	 */
+	public boolean append(byte[] hashedName, byte[] filedata) {
 		try {
 			// Carrega estruturas e abre o arquivo de escrita, caso no estejam
 			// abertos
-			if (offsets == null || out == null) {
-				reloadHeader();
-				out = StackUtils.getDataStream(StackUtils.getTempFile(file));
+			if (inPlaceAppends) {
+				if (offsets == null) {
+					reloadHeader();
+				}
+			} else if (offsets == null || out == null) {
+				// Depois de um writeStack o header continua em memoria: so o
+				// arquivo temporario precisa ser reaberto
+				if (offsets == null) {
+					reloadHeader();
+				}
+				out = StackUtils.getDataStream(StackUtils.getTempFile(file), APPEND_BUFFER);
 			}
 
 			// Se for possível adicionar outro arquivo e com este dado
@@ -227,7 +519,11 @@ public class LocalStack implements Stack {
 			if (nextPosition + 1 <= MAX_FILES
 					&& stackLength + filedata.length <= MAX_SIZE) {
 				// Escreve os dados no arquivo
-				out.write(filedata);
+				if (inPlaceAppends) {
+					writeInPlace(filedata, offsets[nextPosition]);
+				} else {
+					out.write(filedata);
+				}
 
 				// Armazena a posico final deste arquivo no vetor de ponteiros
 				// Relembrando: 
@@ -236,7 +532,9 @@ public class LocalStack implements Stack {
 				offsets[nextPosition + 1] = offsets[nextPosition] + filedata.length;
 
 				// Armazena o nome do arquivo hasheado
-				hashedNames[nextPosition] = StackUtils.strToMD5(filename);
+				setHashedName(nextPosition, hashedName);
+				addToNameTable(nextPosition);
+				addToNameFilter(nextPosition);
 
 				// Atualiza as variáveis do cabecalho
 				stackLength += filedata.length;
@@ -247,6 +545,7 @@ public class LocalStack implements Stack {
 				return true;
 			} else {
 				writeStack();
+				sealed = true;
 
 				return false;
 			}
@@ -257,79 +556,164 @@ public class LocalStack implements Stack {
 		}
 	}
 
+	/**
+	 * Escreve os dados na posicao dada do arquivo da stack, reservando antes
+	 * o header, se for o primeiro append.
+	 */
+	private void writeInPlace(byte[] filedata, long position) throws IOException {
+		reserveHeader();
+		open();
+		writeFully(inout.getChannel(), ByteBuffer.wrap(filedata), position);
+		unsynced = true;
+	}
+
+	/**
+	 * Cria o arquivo da stack com o header inteiro, se ele ainda nao existir.
+	 * O header comeca vazio (NUMDOCS 0): as posicoes so entram nele pelo
+	 * writeAppendedHeaders, depois que os dados estiverem no arquivo.
+	 */
+	private void reserveHeader() throws IOException {
+		if (headerReserved) { return; }
+
+		if (!file.exists() || file.length() < DATA_OFFSET) {
+			DataOutputStream header = StackUtils.getDataStream(file);
+			try {
+				writeHeaders(header);
+			} finally {
+				header.close();
+			}
+			writtenPosition = 0;
+			unsynced = true;
+		}
+		headerReserved = true;
+	}
+
+	/**
+	 * Grava no header somente o que os appends mudaram desde o ultimo
+	 * writeStack: os offsets e nomes das posicoes novas, e o NUMDOCS. Status
+	 * e nomes reaproveitados (replace) ja vao direto para o arquivo.
+	 */
+	private void writeAppendedHeaders() throws IOException {
+		int from = writtenPosition;
+		int to = nextPosition;
+		if (from == to) { return; }
+
+		open();
+		FileChannel channel = inout.getChannel();
+		ByteBuffer index = ByteBuffer.allocate((to - from) * 4);
+		index.asIntBuffer().put(offsets, from + 1, to - from);
+		writeFully(channel, index, HEADER_SIZE + (from + 1) * 4L);
+		writeFully(channel, ByteBuffer.wrap(hashedNames, from * HASHEDNAME_SIZE, (to - from) * HASHEDNAME_SIZE),
+				NAMESPACE_OFFSET + (long) from * HASHEDNAME_SIZE);
+
+		// NUMDOCS por ultimo: ate aqui, o header ainda descreve somente as
+		// posicoes antigas
+		inout.seek(4);
+		inout.writeInt(to);
+		touch();
+		writtenPosition = to;
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+
+	/**
+	 * Writes to the stack file whatever was appended since the last call: the
+	 * data (merged from the temporary file, unless the appends are in place)
+	 * and then only the header bytes that changed. The whole header is
+	 * written just once, when the file is created.
+	 */
 	public void writeStack() throws IOException {
-		if (out != null) {
-			out.close();
+		if (offsets == null) {
+			reloadHeader();
 		}
+		// Stack nova: o header inteiro, de uma vez so
+		reserveHeader();
 
-		// o arquivo stack ainda no existe, crie-o do zero da forma mais
-		// rapida
-		if (!file.exists()) {
-			out = StackUtils.getDataStream(file);
-			writeHeaders(out);
+		if (out != null) {
 			out.close();
-		} else {
+			out = null;
+
+			// Descarta o que houver depois do ultimo arquivo registrado (appends
+			// in place sem writeStack, antes de um crash)
 			open();
-			inout.seek(0);
-			writeHeaders(inout);
-			close();
-		}
-		
-		// Adiciona a colecao apos o indice no arquivo file
-		StackUtils.mergeFiles(file);
+			if (inout.length() > offsets[writtenPosition]) {
+				inout.setLength(offsets[writtenPosition]);
+			}
 
-		if (!StackUtils.getTempFile(file).delete()) {
-			logger.warn("No conseguiu deletar o arquivo " + file);
+			// Adiciona a colecao apos o indice no arquivo file
+			StackUtils.mergeFiles(file);
+			unsynced = true;
+
+			if (!StackUtils.getTempFile(file).delete()) {
+				logger.warn("No conseguiu deletar o arquivo " + file);
+			}
 		}
 		// TODO LastWrite, MD5 e cia
 
-		out = null;
+		// Os dados ja estao no arquivo: agora o header pode aponta-los
+		writeAppendedHeaders();
+
+		// Stack cheia: nenhum nome novo entra no filtro
+		if (nextPosition >= MAX_FILES) {
+			writeNameFilter();
+		}
 	}
 
+	/**
+	 * Header de uma stack sem nenhuma posicao gravada: somente o status vem
+	 * da memoria.
+	 */
 	private void writeHeaders(DataOutput out) throws IOException {
 		// Escreve o HEADER
 		out.writeInt(firstStackId); // FIRSTID
-		out.writeInt(nextPosition); // NUMDOCS
+		out.writeInt(0); // NUMDOCS
 		out.writeLong(creationTime); // CREATION TIME
-		out.writeLong(System.currentTimeMillis()); // UPDATE TIME
+		updateTime = nextUpdateTime();
+		out.writeLong(updateTime); // UPDATE TIME
+		nameFilterDirty = nameFilter != null;
 
 		// MD5 será adicionado depois
-		out.write(new byte[Stack.HASHEDNAME_SIZE]); // MD5
+		out.writeInt(nameHasher.getId()); // NAME HASH, nos 4 primeiros bytes
+		out.write(new byte[Stack.HASHEDNAME_SIZE - 4]); // MD5
 
 		updateHeaderStructs(out);
 	}
 
 	private void updateHeaderStructs(DataOutput out) throws IOException {
-		// TODO tirar a programaco defensiva se ao final da programaco,
-		// no houver outra forma de serem criados os vetores exceto com tamanho
-		// máximo.
-
-		// Descarregar o vetor dos offsets guardados
-		for (int offset : offsets) {
-			out.writeInt(offset);
-		}
-		// Defensiva: Se por algum motivo no estiver do tamanho certo, compense
-		for (int i = 0; i < (MAX_FILES + 1) - offsets.length; i++) {
-			out.writeInt(0);
-		}
+		// Offsets e status sao vizinhos: um buffer so, o que faltar fica zero.
+		// Dos offsets, somente o inicio dos dados
+		ByteBuffer buffer = ByteBuffer.allocate(INDEX_SIZE + STATUS_SIZE);
+		buffer.putInt(0, offsets[0]);
+		((Buffer) buffer).position(INDEX_SIZE);
+		buffer.asIntBuffer().put(statusFiles, 0, Math.min(statusFiles.length, STATUS_SIZE / 4));
+		out.write(buffer.array());
+
+		// Nomes zerados
+		out.write(new byte[MAX_FILES * HASHEDNAME_SIZE]);
+	}
 
-		// Descarregar o vetor de deletados
-		for (int statusFile : statusFiles) {
-			out.writeInt(statusFile);
-		}
-		// Defensiva: Se por algum motivo no estiver do tamanho certo, compense
-		for (int i = 0; i < STATUS_SIZE / 4 - statusFiles.length; i++) {
-			out.writeInt(0);
+	/**
+	 * Copia o nome hasheado da posicao, aumentando hashedNames se preciso.
+	 */
+	private void setHashedName(int position, byte[] hashedName) {
+		byte[] names = hashedNames;
+		int end = (position + 1) * HASHEDNAME_SIZE;
+		if (end > names.length) {
+			names = Arrays.copyOf(names, Math.min(NAMESPACE_SIZE, Math.max(end, names.length * 2)));
 		}
+		System.arraycopy(hashedName, 0, names, position * HASHEDNAME_SIZE, HASHEDNAME_SIZE);
+		hashedNames = names;
+	}
 
-		// Descarregar os nomes dos arquivos
-		for (byte[] hashedName : hashedNames) {
-			out.write(hashedName);
-		}
-		// Defensiva: Se por algum motivo no estiver do tamanho certo, compense
-		for (int i = 0; i < MAX_FILES - hashedNames.length; i++) {
-			out.write(new byte[HASHEDNAME_SIZE]);
-		}
+	/**
+	 * @return a copy of the hashed name at position
+	 */
+	public byte[] getHashedName(int position) {
+		return Arrays.copyOfRange(hashedNames, position * HASHEDNAME_SIZE, (position + 1) * HASHEDNAME_SIZE);
 	}
 
 	public byte[] get(int position) throws IOException {
@@ -337,37 +721,492 @@ public class LocalStack implements Stack {
 
 		int size = offsets[position + 1] - offsets[position];
 
+		byte bytes[] = new byte[size];
+
+		if (copyMapped(offsets[position], bytes)) {
+			return bytes;
+		}
+
 		open();
 
 		inout.seek(offsets[position]);
 
-		byte bytes[] = new byte[size];
-
 		inout.readFully(bytes);
 
 		return bytes;
 	}
 
-	public byte[] get(String filename) throws IOException {
-		byte[] queryname = StackUtils.strToMD5(filename);
-		MAIN: 
-		for (int i = 0; i < hashedNames.length; i++) {
-			for (int k = 0; k < hashedNames[i].length; k++) {
-				if (hashedNames[i][k] != queryname[k]) {
-					continue MAIN;
+	/**
+	 * Lock-free version of {@link #get(int)}: uses positional reads on a
+	 * read-only channel instead of seek() + readFully() on the shared
+	 * RandomAccessFile, so any number of threads may read at once.
+	 * 
+	 * Offsets below nextPosition never change once written (nextPosition is
+	 * volatile and only published after them), so they are a safe snapshot.
+	 */
+	public byte[] read(int position) throws IOException {
+		if (position < 0 || position >= nextPosition) { return new byte[0]; }
+
+		int[] index = index();
+		int start = index[position];
+		byte[] bytes = new byte[index[position + 1] - start];
+		if (!copyMapped(start, bytes)) {
+			readFully(ByteBuffer.wrap(bytes), start);
+		}
+
+		return bytes;
+	}
+
+	/**
+	 * Reads the data at position into dst, without allocating a byte[].
+	 * 
+	 * @return the amount of bytes read, or -1 if there is no such position
+	 * @throws BufferOverflowException
+	 *             if dst has not enough space remaining
+	 */
+	public int read(int position, ByteBuffer dst) throws IOException {
+		if (position < 0 || position >= nextPosition) { return -1; }
+
+		int[] index = index();
+		int start = index[position];
+		int size = index[position + 1] - start;
+		if (dst.remaining() < size) {
+			throw new BufferOverflowException();
+		}
+
+		ByteBuffer view = slice(position);
+		if (view != null) {
+			dst.put(view);
+		} else {
+			ByteBuffer window = dst.duplicate();
+			((Buffer) window).limit(window.position() + size);
+			readFully(window, start);
+			((Buffer) dst).position(dst.position() + size);
+		}
+
+		return size;
+	}
+
+	/**
+	 * Sends the data at position to target with FileChannel.transferTo (or
+	 * from the mapping, if mapped), so it never goes through the Java heap.
+	 * 
+	 * @return the amount of bytes transferred, or -1 if there is no such
+	 *         position
+	 */
+	public long transferTo(int position, WritableByteChannel target) throws IOException {
+		if (position < 0 || position >= nextPosition) { return -1; }
+
+		int[] index = index();
+		long start = index[position];
+		long size = index[position + 1] - start;
+
+		ByteBuffer view = slice(position);
+		if (view != null) {
+			while (view.hasRemaining()) {
+				target.write(view);
+			}
+			return size;
+		}
+
+		FileChannel channel = readChannel();
+		long transferred = 0;
+		while (transferred < size) {
+			long sent = channel.transferTo(start + transferred, size - transferred, target);
+			if (sent <= 0 && start + transferred >= channel.size()) {
+				throw new EOFException("stack " + file + " ended before position " + (start + transferred));
+			}
+			transferred += sent;
+		}
+
+		return size;
+	}
+
+	/**
+	 * Stream over the byte range of position in the stack file. Nothing is
+	 * read until the caller asks for it.
+	 * 
+	 * @return the stream, or null if there is no such position
+	 */
+	public InputStream openStream(int position) throws IOException {
+		if (position < 0 || position >= nextPosition) { return null; }
+
+		ByteBuffer view = slice(position);
+		if (view != null) {
+			return new StackInputStream(view);
+		}
+
+		int[] index = index();
+		return new StackInputStream(readChannel(), index[position], index[position + 1]);
+	}
+
+	/**
+	 * Read-only view of the data at position, straight from the mapping: no
+	 * copy and no syscall. Returns null if the stack is not mapped.
+	 */
+	public ByteBuffer slice(int position) throws IOException {
+		if (position < 0 || position >= nextPosition) { return null; }
+
+		ByteBuffer map = mapping();
+		if (map == null) { return null; }
+
+		int[] index = index();
+		ByteBuffer view = map.duplicate();
+		((Buffer) view).limit(index[position + 1]);
+		((Buffer) view).position(index[position]);
+		return view.slice();
+	}
+
+	private boolean copyMapped(int start, byte[] bytes) throws IOException {
+		ByteBuffer map = mapping();
+		if (map == null) { return false; }
+
+		ByteBuffer view = map.duplicate();
+		((Buffer) view).position(start);
+		view.get(bytes);
+		return true;
+	}
+
+	/**
+	 * Maps the whole stack on the first read after it is sealed.
+	 */
+	private ByteBuffer mapping() throws IOException {
+		if (!mappedReads || !sealed) { return null; }
+
+		MappedByteBuffer map = mapped;
+		if (map == null) {
+			synchronized (this) {
+				map = mapped;
+				if (map == null) {
+					map = readChannel().map(FileChannel.MapMode.READ_ONLY, 0, index()[nextPosition]);
+					mapped = map;
 				}
 			}
-			return get(i);
 		}
-		return new byte[0];
+		return map;
 	}
 
-	public void dumpNames() {
-		for (byte[] name : hashedNames) {
-			if (name[0] != 0) {
-				System.err.println(StackUtils.toHexadecimal(name));
+	/**
+	 * Asynchronous version of {@link #read(int)}: the read is issued on an
+	 * AsynchronousFileChannel and the future is completed by its thread pool,
+	 * so no thread is blocked waiting for the disk.
+	 */
+	public CompletableFuture<byte[]> readAsync(int position) {
+		final CompletableFuture<byte[]> future = new CompletableFuture<byte[]>();
+		if (position < 0 || position >= nextPosition) {
+			future.complete(new byte[0]);
+			return future;
+		}
+
+		try {
+			int[] index = index();
+			final int start = index[position];
+			final byte[] bytes = new byte[index[position + 1] - start];
+			if (copyMapped(start, bytes)) {
+				future.complete(bytes);
+				return future;
+			}
+
+			final AsynchronousFileChannel channel = asyncChannel();
+			channel.read(ByteBuffer.wrap(bytes), start, null, new CompletionHandler<Integer, Void>() {
+				private long current = start;
+
+				@Override
+				public void completed(Integer readed, Void attachment) {
+					if (readed < 0) {
+						future.completeExceptionally(new EOFException("stack " + file + " ended before position " + current));
+						return;
+					}
+
+					current += readed;
+					int done = (int) (current - start);
+					if (done < bytes.length) {
+						channel.read(ByteBuffer.wrap(bytes, done, bytes.length - done), current, null, this);
+					} else {
+						future.complete(bytes);
+					}
+				}
+
+				@Override
+				public void failed(Throwable exc, Void attachment) {
+					future.completeExceptionally(exc);
+				}
+			});
+		} catch (IOException e) {
+			future.completeExceptionally(e);
+		}
+
+		return future;
+	}
+
+	private AsynchronousFileChannel asyncChannel() throws IOException {
+		AsynchronousFileChannel channel = asyncReader;
+		if (channel == null || !channel.isOpen()) {
+			synchronized (this) {
+				channel = asyncReader;
+				if (channel == null || !channel.isOpen()) {
+					channel = AsynchronousFileChannel.open(file.toPath(),
+							Collections.singleton(StandardOpenOption.READ), ioExecutor);
+					asyncReader = channel;
+				}
+			}
+		}
+		return channel;
+	}
+
+	/**
+	 * Multi-get version of {@link #read(int)}. Positions must be sorted, so
+	 * the reads go forward in the file (offsets grow with the position), and
+	 * neighbour files are coalesced into a single larger read.
+	 * 
+	 * @param positions
+	 *            sorted positions; invalid ones get an empty byte[]
+	 * @return the data of each position, in the same order
+	 */
+	public byte[][] read(int[] positions) throws IOException {
+		byte[][] results = new byte[positions.length][];
+		int[] index = index();
+		int limit = nextPosition;
+
+		int i = 0;
+		while (i < positions.length) {
+			if (positions[i] < 0 || positions[i] >= limit) {
+				results[i++] = new byte[0];
+				continue;
+			}
+
+			// Estende o bloco enquanto o proximo arquivo estiver perto
+			int start = index[positions[i]];
+			int end = index[positions[i] + 1];
+			int j = i + 1;
+			while (j < positions.length && positions[j] >= 0 && positions[j] < limit
+					&& index[positions[j]] - end <= BATCH_MAX_GAP
+					&& index[positions[j] + 1] - start <= BATCH_MAX_READ) {
+				end = Math.max(end, index[positions[j] + 1]);
+				j++;
+			}
+
+			byte[] block = new byte[end - start];
+			if (!copyMapped(start, block)) {
+				readFully(ByteBuffer.wrap(block), start);
+			}
+
+			for (; i < j; i++) {
+				int from = index[positions[i]] - start;
+				int to = index[positions[i] + 1] - start;
+				results[i] = Arrays.copyOfRange(block, from, to);
+			}
+		}
+
+		return results;
+	}
+
+	private void readFully(ByteBuffer buffer, long position) throws IOException {
+		FileChannel channel = readChannel();
+		long current = position;
+		while (buffer.hasRemaining()) {
+			int readed = channel.read(buffer, current);
+			if (readed < 0) {
+				throw new EOFException("stack " + file + " ended before position " + current);
+			}
+			current += readed;
+		}
+	}
+
+	protected FileChannel readChannel() throws IOException {
+		FileChannel channel = reader;
+		if (channel == null || !channel.isOpen()) {
+			synchronized (this) {
+				channel = reader;
+				if (channel == null || !channel.isOpen()) {
+					channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+					reader = channel;
+				}
+			}
+		}
+		return channel;
+	}
+
+	public byte[] get(String filename) throws IOException {
+		int position = find(nameHasher.hash(filename));
+		if (position < 0) { return new byte[0]; }
+
+		return get(position);
+	}
+
+	/**
+	 * Looks up a hashed name in this stack, in O(1): see nameTable. The
+	 * hashedNames must be loaded, and the caller must hold the lock used by
+	 * the writers of this stack.
+	 * 
+	 * @return the position of the (not deleted) file with this hashed name,
+	 *         or -1
+	 */
+	public int find(byte[] hashedName) {
+		if (nameTable == null) {
+			buildNameTable(nextPosition);
+		}
+
+		char[] table = nameTable;
+		int mask = table.length - 1;
+		for (int i = nameSlot(hashedName, 0, mask);; i = (i + 1) & mask) {
+			int position = table[i] - 1;
+			if (position < 0) { return -1; }
+			if (!isDeleted(position) && sameName(position, hashedName)) { return position; }
+		}
+	}
+
+	private boolean sameName(int position, byte[] hashedName) {
+		byte[] names = hashedNames;
+		int offset = position * HASHEDNAME_SIZE;
+		for (int k = 0; k < HASHEDNAME_SIZE; k++) {
+			if (names[offset + k] != hashedName[k]) { return false; }
+		}
+		return true;
+	}
+
+	/**
+	 * Os bytes do hash ja sao uniformes: os 4 primeiros bastam.
+	 */
+	private static int nameSlot(byte[] names, int offset, int mask) {
+		return ((names[offset] & 0xFF) << 24 | (names[offset + 1] & 0xFF) << 16
+				| (names[offset + 2] & 0xFF) << 8 | (names[offset + 3] & 0xFF)) & mask;
+	}
+
+	/**
+	 * @param count
+	 *            quantos nomes colocar na tabela, a partir da posicao 0
+	 */
+	private void buildNameTable(int count) {
+		// No maximo metade cheia
+		int capacity = Integer.highestOneBit(Math.max(32, count) * 2 - 1) << 1;
+		nameTable = new char[capacity];
+		nameTableSize = 0;
+		for (int i = 0; i < count; i++) {
+			addToNameTable(i);
+		}
+	}
+
+	private void addToNameTable(int position) {
+		if (nameTable == null) { return; }
+
+		if ((nameTableSize + 1) * 2 > nameTable.length) {
+			// Reconstroi com o dobro do tamanho, ja incluindo position (que
+			// num append ainda e' igual a nextPosition)
+			buildNameTable(Math.max(nextPosition, position + 1));
+			return;
+		}
+
+		int mask = nameTable.length - 1;
+		int i = nameSlot(hashedNames, position * HASHEDNAME_SIZE, mask);
+		while (nameTable[i] != 0) {
+			i = (i + 1) & mask;
+		}
+		nameTable[i] = (char) (position + 1);
+		nameTableSize++;
+	}
+
+	/**
+	 * Tests the Bloom filter of this stack, building it on first use: from
+	 * the filter file, if it matches the stack, or else from the hashed names
+	 * (loading the header only for that). The caller must hold the lock used
+	 * by the writers of this stack.
+	 * 
+	 * @return false if the name is surely not in this stack
+	 */
+	public boolean mightContain(byte[] hashedName) throws IOException {
+		BloomFilter filter = nameFilter;
+		if (filter == null) {
+			filter = loadNameFilter();
+		}
+		return filter.mightContain(hashedName);
+	}
+
+	private BloomFilter loadNameFilter() throws IOException {
+		BloomFilter filter = readNameFilter();
+		if (filter == null) {
+			boolean loaded = offsets != null;
+			if (hashedNames == null) {
+				reloadHeader();
+			}
+
+			// A ultima stack ainda recebe appends: ja nasce com o tamanho maximo
+			filter = new BloomFilter(sealed ? nextPosition : MAX_FILES);
+			for (int i = 0; i < nextPosition; i++) {
+				filter.add(hashedNames, i * HASHEDNAME_SIZE);
+			}
+			nameFilterDirty = true;
+
+			if (!loaded) {
+				unloadHeader();
 			}
 		}
+		nameFilter = filter;
+		return filter;
+	}
+
+	/**
+	 * @return the filter in the filter file, or null if there is none or if
+	 *         it is not from the current version of the stack
+	 */
+	private BloomFilter readNameFilter() {
+		File filterFile = StackUtils.getFilterFile(file);
+		if (!filterFile.exists()) { return null; }
+
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(filterFile)));
+			if (in.readInt() != FILTER_MAGIC || in.readLong() != updateTime
+					|| in.readInt() != nextPosition) {
+				return null;
+			}
+			return BloomFilter.readFrom(in);
+		} catch (IOException ioe) {
+			logger.warn("Filtro invalido " + filterFile + ", sera refeito", ioe);
+			return null;
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	/**
+	 * Grava o filtro, se ele mudou, junto com o UPDATE TIME e o NUMDOCS do
+	 * header: so vale para esta versao da stack.
+	 */
+	private void writeNameFilter() {
+		BloomFilter filter = nameFilter;
+		if (filter == null || !nameFilterDirty) { return; }
+
+		File filterFile = StackUtils.getFilterFile(file);
+		DataOutputStream out = null;
+		try {
+			out = StackUtils.getDataStream(filterFile);
+			out.writeInt(FILTER_MAGIC);
+			out.writeLong(updateTime);
+			out.writeInt(nextPosition);
+			filter.writeTo(out);
+			out.close();
+			out = null;
+			nameFilterDirty = false;
+		} catch (IOException ioe) {
+			logger.warn("Nao foi possivel gravar o filtro " + filterFile, ioe);
+		} finally {
+			IOUtils.closeQuietly(out);
+		}
+	}
+
+	private void addToNameFilter(int position) {
+		BloomFilter filter = nameFilter;
+		if (filter == null) { return; }
+
+		filter.add(hashedNames, position * HASHEDNAME_SIZE);
+		nameFilterDirty = true;
+	}
+
+	public void dumpNames() {
+		for (int i = 0; i < nextPosition; i++) {
+			System.err.println(StackUtils.toHexadecimal(getHashedName(i)));
+		}
 	}
 
 	public boolean open() {
@@ -384,11 +1223,23 @@ public class LocalStack implements Stack {
 	}
 
 	public boolean close() {
+		writeNameFilter();
 		try {
 			if (inout != null) {
 				inout.close();
 			}
 			inout = null;
+			synchronized (this) {
+				if (reader != null) {
+					reader.close();
+				}
+				reader = null;
+				mapped = null;
+				if (asyncReader != null) {
+					asyncReader.close();
+				}
+				asyncReader = null;
+			}
 			return true;
 		} catch (IOException e) {
 			inout = null;
@@ -398,7 +1249,7 @@ public class LocalStack implements Stack {
 		}
 	}
 
-	private boolean loadStack() {
+	private boolean loadStack(boolean lazyHeader) {
 		try {
 			open();
 			inout.seek(0);
@@ -406,9 +1257,22 @@ public class LocalStack implements Stack {
 			firstStackId = inout.readInt();
 			nextPosition = inout.readInt();
 			creationTime = inout.readLong();
+			updateTime = inout.readLong();
+			// Stacks antigas tem zeros aqui: MD5
+			nameHasher = NameHasher.forId(inout.readInt());
+			if (nameHasher == null) { 
+				throw new IOException("unknown name hash"); 
+			}
 			stackLength = file.length();
+			sealed = nextPosition >= MAX_FILES;
+			headerReserved = true;
+			writtenPosition = nextPosition;
 
-			reloadHeader();
+			if (lazyHeader) {
+				loadStatus();
+			} else {
+				reloadHeader();
+			}
 			return true;
 		} catch (IOException e) {
 			logger.error("Exception loading stack "+file, e);
@@ -416,6 +1280,50 @@ public class LocalStack implements Stack {
 		}
 	}
 
+	/**
+	 * Sempre diferente da anterior, mesmo com duas alteracoes no mesmo
+	 * milissegundo.
+	 */
+	private long nextUpdateTime() {
+		return Math.max(System.currentTimeMillis(), updateTime + 1);
+	}
+
+	/**
+	 * Atualiza o UPDATE TIME do header depois de uma alteracao feita direto
+	 * no arquivo da stack.
+	 */
+	private void touch() throws IOException {
+		updateTime = nextUpdateTime();
+		inout.seek(UPDATETIME_OFFSET);
+		inout.writeLong(updateTime);
+		nameFilterDirty = nameFilter != null;
+		unsynced = true;
+	}
+
+	/**
+	 * Forces the writes made to the stack file (data, header and status) to
+	 * the disk. Appends still in the temporary file are not included: see
+	 * {@link #writeStack()}.
+	 */
+	public void sync() throws IOException {
+		FileChannel channel = takeUnsynced();
+		if (channel != null) {
+			channel.force(false);
+		}
+	}
+
+	/**
+	 * Primeira metade do sync, para quem forca o canal fora do lock: o canal
+	 * com escritas ainda nao forcadas (o flag e' limpo), ou null.
+	 */
+	FileChannel takeUnsynced() throws IOException {
+		if (!unsynced) { return null; }
+
+		open();
+		unsynced = false;
+		return inout.getChannel();
+	}
+
 	public boolean isDeleted(int position) {
 		if (position < 0 || position >= nextPosition) { return false; }
 
@@ -467,6 +1375,7 @@ public class LocalStack implements Stack {
 		inout.seek(STATUS_OFFSET + (Integer.SIZE / 8) * block);
 		inout.writeInt(statusFiles[block]);
 		numFiles--;
+		touch();
 
 		return true;
 	}
@@ -502,12 +1411,22 @@ public class LocalStack implements Stack {
 		inout.seek(STATUS_OFFSET + (Integer.SIZE / 8) * block);
 		inout.writeInt(statusFiles[block]);
 		numFiles++;
+		touch();
 
 		return true;
 	}
 
 	public boolean replace(int position, String filename, byte[] filedata)
 			throws IOException {
+		return replace(position, nameHasher.hash(filename), filedata);
+	}
+
+	/**
+	 * @param hashedName
+	 *            the name already hashed with {@link #getNameHasher()}
+	 */
+	public boolean replace(int position, byte[] hashedName, byte[] filedata)
+			throws IOException {
 		// Dupla Defensiva FTW
 		int slotspace = (offsets[position + 1] - offsets[position]);
 		if (filedata.length > slotspace) {
@@ -533,9 +1452,13 @@ public class LocalStack implements Stack {
 		inout.write(datafilled);
 
 		// Atualiza o nome
-		hashedNames[position] = StackUtils.strToMD5(filename);
+		setHashedName(position, hashedName);
+		// O nome antigo continua na tabela, mas nao confere mais
+		addToNameTable(position);
+		addToNameFilter(position);
 		inout.seek(NAMESPACE_OFFSET + HASHEDNAME_SIZE * position);
-		inout.write(hashedNames[position]);
+		inout.write(hashedName);
+		touch();
 
 		return true;
 	}
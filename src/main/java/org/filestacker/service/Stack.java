@@ -4,6 +4,10 @@ public interface Stack {
 	public final int MAX_SIZE = 64 * 1024 * 1024; // 64MB
 	public final int MAX_FILES = 32 * 1024; // 32768 arquivos
 	public final int HEADER_SIZE = (2 * Integer.SIZE + 2 * Long.SIZE) / 8 + 16; // 40
+	// HEADER: FIRSTID - NUMDOCS - CREATION TIME - UPDATE TIME - MD5
+	public final int UPDATETIME_OFFSET = (2 * Integer.SIZE + Long.SIZE) / 8; // 16
+	// Os 4 primeiros bytes do campo MD5 guardam o id do NameHasher (0 = MD5)
+	public final int NAMEHASH_OFFSET = (2 * Integer.SIZE + 2 * Long.SIZE) / 8; // 24
 	// bytes
 
 	// MAX_FILES +1 para marcar começo e fim de todos os arquivos
@@ -29,4 +33,7 @@ public interface Stack {
 	// Ponto onde começam os arquivos armazenados
 	public final int DATA_OFFSET = HEADER_SIZE + INDEX_SIZE + STATUS_SIZE
 			+ NAMESPACE_SIZE;
+
+	// Maior arquivo que cabe numa stack vazia
+	public final int MAX_FILE_SIZE = MAX_SIZE - DATA_OFFSET;
 }
@@ -0,0 +1,97 @@
+package org.filestacker.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * InputStream bounded to the byte range of one file inside a stack. Reads
+ * are positional, so it does not disturb (nor is disturbed by) other readers
+ * of the same stack, and only the caller's buffer is ever allocated.
+ *
+ * Reads either from the stack channel or, for mapped stacks, from a view of
+ * the mapping. Closing the stream does not close the stack.
+ *
+ * @author daniel
+ */
+class StackInputStream extends InputStream {
+
+	private final FileChannel channel;
+	private final ByteBuffer view;
+	private final long end;
+	private long position;
+	private long mark;
+
+	StackInputStream(FileChannel channel, long start, long end) {
+		this.channel = channel;
+		this.view = null;
+		this.position = start;
+		this.mark = start;
+		this.end = end;
+	}
+
+	StackInputStream(ByteBuffer view) {
+		this.channel = null;
+		this.view = view;
+		this.position = 0;
+		this.mark = 0;
+		this.end = view.remaining();
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] single = new byte[1];
+		return read(single, 0, 1) == 1 ? single[0] & 0xFF : -1;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) { return 0; }
+
+		int n = (int) Math.min(len, end - position);
+		if (n <= 0) { return -1; }
+
+		int readed;
+		if (view != null) {
+			ByteBuffer source = view.duplicate();
+			((Buffer) source).position(source.position() + (int) position);
+			source.get(b, off, n);
+			readed = n;
+		} else {
+			readed = channel.read(ByteBuffer.wrap(b, off, n), position);
+			if (readed < 0) { return -1; }
+		}
+
+		position += readed;
+		return readed;
+	}
+
+	@Override
+	public long skip(long n) {
+		long skipped = Math.max(0, Math.min(n, end - position));
+		position += skipped;
+		return skipped;
+	}
+
+	@Override
+	public int available() {
+		return (int) Math.min(Integer.MAX_VALUE, end - position);
+	}
+
+	@Override
+	public boolean markSupported() {
+		return true;
+	}
+
+	@Override
+	public synchronized void mark(int readlimit) {
+		mark = position;
+	}
+
+	@Override
+	public synchronized void reset() {
+		position = mark;
+	}
+}
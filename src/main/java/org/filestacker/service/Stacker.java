@@ -1,82 +1,350 @@
 package org.filestacker.service;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.log4j.Logger;
-import org.filestacker.utils.HashBiMap;
+import org.filestacker.cache.RecordCache;
+import org.filestacker.utils.MappedNameIndex;
+import org.filestacker.utils.NameHasher;
+import org.filestacker.utils.NameIndex;
 import org.filestacker.utils.StackUtils;
 
 public class Stacker {
 
 	private static final Logger logger = Logger.getLogger(Stacker.class);
 
-	protected HashBiMap<String, Integer> namespace = new HashBiMap<String, Integer>();
+	/**
+	 * Namespace file, see {@link StackerConfig#setNamespaceFile(boolean)}.
+	 */
+	public static final String NAMESPACE_FILE = "namespace.idx";
+	/**
+	 * Write-ahead log file, see {@link StackerConfig#setWriteAheadLog(boolean)}.
+	 */
+	public static final String LOG_FILE = "stacker.wal";
+
+	/**
+	 * Hash (MD5) do nome -> stackid. O caminho inverso usa os hashedNames de
+	 * cada stack. Null sem namespace global (ver
+	 * StackerConfig.setGlobalNamespace).
+	 */
+	protected NameIndex namespace;
 	protected List<StackFreeSlot> freeSlots = new ArrayList<StackFreeSlot>();
 	protected List<Integer> deleted_stackids = new ArrayList<Integer>();
 
-	protected StackerEntry[] entries = new StackerEntry[0];
+	/**
+	 * Copy-on-write: readers may search it without the lock.
+	 */
+	protected volatile StackerEntry[] entries = new StackerEntry[0];
 	protected StackerEntry lastEntry = null;
+	/**
+	 * Stacks abertas para append com StackerConfig.getAppendStripes() > 1
+	 * (null: ainda nao criada), no lugar de lastEntry. Cada uma reserva um
+	 * bloco de MAX_FILES stackids a partir de nextBlock, entao os stackids
+	 * deixam de ser continuos.
+	 */
+	protected StackerEntry[] tails = null;
+	private int nextBlock = 0;
+	private final AtomicInteger nextStripe = new AtomicInteger();
+	/**
+	 * Locks por hash do nome, no modo striped: dois addFile do mesmo nome nao
+	 * rodam ao mesmo tempo. Pegos antes do lock do Stacker.
+	 */
+	private Lock[] nameLocks = null;
+	private static final int NAME_LOCKS = 64;
 
-	protected int nextStackId = 0;
+	protected volatile int nextStackId = 0;
 	protected int totalDocs = 0;
 
 	protected final String stacksPath;
+	protected final StackerConfig config;
 	protected final boolean singleMode;
 	protected final boolean useCompression;
+	protected final RecordCache cache;
+	/**
+	 * Hash dos nomes: o das stacks carregadas ou, sem nenhuma stack, o do
+	 * config.
+	 */
+	protected NameHasher hasher;
+	/**
+	 * O cache guarda os dados comprimidos, como estao na stack.
+	 */
+	protected final boolean cacheRaw;
+	/**
+	 * Incrementado (sob o lock) antes e depois de cada escrita que invalida o
+	 * cache, como um seqlock: impar durante a escrita. Leituras concorrentes
+	 * so colocam no cache o que leram com o mesmo valor par do inicio ao fim.
+	 */
+	private volatile long invalidations = 0;
+	/**
+	 * Headers (offsets e nomes) carregados, para o limite de
+	 * StackerConfig.getMaxLoadedHeaders().
+	 */
+	private final AtomicInteger loadedHeaders = new AtomicInteger();
+	private final AtomicBoolean trimming = new AtomicBoolean();
 
 	private static final boolean DEFAULT_SINGLEMODE = true;
 	private static final boolean DEFAULT_COMPRESSION = false;
 
-	private Lock lock = new ReentrantLock();
+	/**
+	 * Escritas (addFile, deleteFile, novas stacks, freeSlots) no modo
+	 * exclusivo. nameToId le o namespace com uma leitura otimista, e so pega
+	 * o read lock se uma escrita acontecer no meio. Nao e' reentrante: os
+	 * metodos publicos pegam o lock e chamam os internos (add, delete, idOf,
+	 * tryToReplace), que supoem o lock ja pego.
+	 */
+	private final StampedLock lock = new StampedLock();
+	/**
+	 * Null sem StackerConfig.isWriteAheadLog(). Comeca vazio: ao carregar, o
+	 * log anterior ja foi refeito nas stacks (ver stacks(String,
+	 * StackerConfig)).
+	 */
+	protected final WriteAheadLog log;
+	protected final StackerConfig.Durability durability;
+	/**
+	 * Bytes escritos e hora (ms) do ultimo sync, para o modo PERIODIC.
+	 */
+	private final AtomicLong unsyncedBytes = new AtomicLong();
+	private volatile long lastSync = System.currentTimeMillis();
+	/**
+	 * Erro do ultimo sync, ate um sync dar certo.
+	 */
+	private volatile IOException syncFailure = null;
+	/**
+	 * Sem o log, um sync por vez forca as stacks: quem chega depois espera o
+	 * fsync em andamento, que pode ter levado as suas escritas. Pego antes do
+	 * lock do Stacker.
+	 */
+	private final Object forceLock = new Object();
+	/**
+	 * Fila do addFileAsync e a thread que a escreve, null sem
+	 * StackerConfig.getWriteQueue().
+	 */
+	private final BlockingQueue<QueuedFile> writeQueue;
+	private final Thread writer;
+	private volatile boolean writerClosed = false;
+	private final QueuedFile stop = new QueuedFile(null, null, null);
+	private static final int WRITE_BATCH = 256;
 
 	public Stacker(final String path) {
 		this(path, DEFAULT_SINGLEMODE, DEFAULT_COMPRESSION);
 	}
 
 	public Stacker(final String path, boolean threadSafe, boolean compression) {
+		this(path, new StackerConfig().setThreadSafe(threadSafe).setCompression(compression));
+	}
+
+	public Stacker(final String path, final StackerConfig config) {
+		this(path, config, false);
+	}
+
+	/**
+	 * @param load
+	 *            se false, o namespace comeca vazio, mesmo que exista um
+	 *            NAMESPACE_FILE
+	 */
+	private Stacker(final String path, final StackerConfig config, boolean load) {
 		stacksPath = path;
-		singleMode = threadSafe;
-		useCompression = compression;
+		this.config = config;
+		singleMode = config.isThreadSafe();
+		useCompression = config.isCompression();
+		cache = config.getRecordCache();
+		cacheRaw = useCompression && config.isCacheCompressed();
+		hasher = config.getNameHasher();
+		durability = config.getDurability();
+		if (config.getAppendStripes() > 1) {
+			tails = new StackerEntry[config.getAppendStripes()];
+			nameLocks = new Lock[NAME_LOCKS];
+			for (int i = 0; i < NAME_LOCKS; i++) {
+				nameLocks[i] = new ReentrantLock();
+			}
+		}
 
 		boolean created = new File(stacksPath).mkdirs();
 		if (!created && logger.isDebugEnabled()) 
 			logger.debug("No foi possivel criar o diretorio " + path + " para as stacks");
+
+		namespace = openNamespace(load);
+
+		if (config.isWriteAheadLog()) {
+			try {
+				log = new WriteAheadLog(new File(stacksPath, LOG_FILE));
+			} catch (IOException ioe) {
+				throw new UncheckedIOException("could not open " + LOG_FILE + " in " + stacksPath, ioe);
+			}
+		} else {
+			log = null;
+		}
+
+		if (config.getWriteQueue() > 0) {
+			writeQueue = new ArrayBlockingQueue<QueuedFile>(config.getWriteQueue());
+			writer = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					writeQueued();
+				}
+			}, "stacker-writer " + stacksPath);
+			writer.setDaemon(true);
+			writer.start();
+		} else {
+			writeQueue = null;
+			writer = null;
+		}
 	}
 
-	protected Stacker(final String path, final LocalStack[] stacks, boolean threadSafe, boolean compression) throws IOException {
-		this(path, threadSafe, compression);
+	private NameIndex openNamespace(boolean load) {
+		if (!config.isGlobalNamespace()) { 
+			return null; 
+		}
 
-		entries = new StackerEntry[stacks.length];
+		if (!config.isNamespaceFile()) { 
+			return new NameIndex(); 
+		}
 
-		for (int i = 0; i < stacks.length; i++) {
-			entries[i] = new StackerEntry(stacks[i], singleMode);
-			totalDocs += entries[i].getNumFiles();
+		try {
+			MappedNameIndex index = new MappedNameIndex(new File(stacksPath, NAMESPACE_FILE));
+			if (!load) {
+				index.clear();
+			}
+			return index;
+		} catch (IOException ioe) {
+			logger.warn("Nao foi possivel abrir " + NAMESPACE_FILE + " em " + stacksPath
+					+ ", usando o namespace em memoria", ioe);
+			return new NameIndex();
+		}
+	}
 
-			// Carregue o local namespace de cada stack juntando no stacker
-			byte[][] localspace = entries[i].getNamespace();
-			// Carregue os nomes dos arquivos no deletados
-			for (int k = 0; k < localspace.length
-					&& k < entries[i].getNumFiles(); k++) {
-				if (!entries[i].isDeleted(entries[i].firstId + k)) {
-					namespace.put(StackUtils.toHexadecimal(localspace[k]),
-							entries[i].firstId + k);
-					// else
-					// freeSlots.add(entries[i].getDeletedSlot(k));
+	/**
+	 * Identifica o estado das stacks para o NAMESPACE_FILE: muda a cada
+	 * append persistido, delete ou replace.
+	 */
+	private static long fingerprint(StackerEntry[] entries) {
+		long h = 0xcbf29ce484222325L ^ entries.length;
+		for (StackerEntry entry : entries) {
+			h = (h ^ entry.firstId) * 0x100000001b3L;
+			h = (h ^ entry.getNextId()) * 0x100000001b3L;
+			h = (h ^ entry.getUpdateTime()) * 0x100000001b3L;
+		}
+		return h;
+	}
+
+	protected Stacker(final String path, final LocalStack[] stacks, boolean threadSafe, boolean compression) throws IOException {
+		this(path, stacks, new StackerConfig().setThreadSafe(threadSafe).setCompression(compression));
+	}
+
+	protected Stacker(final String path, final LocalStack[] stacks, final StackerConfig config) throws IOException {
+		this(path, config, true);
+
+		// Todas as stacks precisam usar o mesmo hash: o namespace e a busca
+		// por nome sao um so para todas
+		if (stacks.length > 0) {
+			hasher = stacks[0].getNameHasher();
+			for (LocalStack stack : stacks) {
+				if (stack.getNameHasher() != hasher) {
+					throw new IOException("stacks in " + path + " with different name hashes: "
+							+ hasher + " and " + stack.getNameHasher());
 				}
 			}
+			if (hasher != config.getNameHasher()) {
+				logger.info("Usando o hash " + hasher + " das stacks de " + path + ", e nao "
+						+ config.getNameHasher());
+			}
+		}
+
+		StackerEntry[] entries = new StackerEntry[stacks.length];
+		int stripe = 0;
+		for (int i = stacks.length - 1; i >= 0; i--) {
+			// Somente a ultima stack recebe appends, as outras estao seladas.
+			// No modo striped, tambem as mais novas que ainda tem stackids
+			// livres no seu bloco, uma por stripe
+			boolean tail = i == stacks.length - 1;
+			if (tails != null && !tail && stripe < tails.length && !stacks[i].isSealed()) {
+				tail = stacks[i + 1].getFirstId() - stacks[i].getFirstId() >= Stack.MAX_FILES;
+			}
+			if (!tail) {
+				stacks[i].seal();
+			}
+			entries[i] = newEntry(stacks[i]);
+			if (tail && tails != null) {
+				tails[stripe++] = entries[i];
+			}
+			nextBlock = Math.max(nextBlock, stacks[i].getFirstId() + Stack.MAX_FILES);
+		}
+
+		// O NAMESPACE_FILE so e' aproveitado se as stacks nao mudaram desde
+		// que ele foi fechado
+		boolean rebuild = namespace != null;
+		if (namespace instanceof MappedNameIndex) {
+			rebuild = !((MappedNameIndex) namespace).isValid(fingerprint(entries));
+			if (rebuild) {
+				logger.info("Reconstruindo o " + NAMESPACE_FILE + " de " + stacksPath);
+				namespace.clear();
+			}
+		}
+
+		for (int i = 0; i < stacks.length; i++) {
+			totalDocs += entries[i].getNumFiles();
 
 			if (!useCompression)
 				freeSlots.addAll(entries[i].getDeleteds());
 		}
 
+		if (rebuild) {
+			// Os nomes de cada stack sao extraidos em paralelo, mas inseridos
+			// em ordem: o NameIndex nao e' thread-safe, e um nome repetido
+			// fica com o stackid mais recente
+			List<Callable<long[]>> tasks = new ArrayList<Callable<long[]>>(entries.length);
+			for (final StackerEntry entry : entries) {
+				tasks.add(new Callable<long[]>() {
+					@Override
+					public long[] call() throws IOException {
+						return liveNames(entry);
+					}
+				});
+			}
+			List<long[]> names = invokeAll(tasks, config.getLoadParallelism());
+
+			int total = 0;
+			for (long[] localspace : names) {
+				total += localspace.length / 3;
+			}
+			namespace.ensureCapacity(total);
+			for (long[] localspace : names) {
+				for (int k = 0; k < localspace.length; k += 3) {
+					namespace.put(localspace[k], localspace[k + 1], (int) localspace[k + 2]);
+				}
+			}
+		}
+		this.entries = entries;
+
 		if (entries.length > 0) {
 			lastEntry = entries[entries.length - 1];
 			nextStackId = lastEntry.getNextId();
@@ -84,6 +352,76 @@ public class Stacker {
 			lastEntry = null;
 			nextStackId = 0;
 		}
+		trimHeaders();
+	}
+
+	/**
+	 * Carregue o local namespace de uma stack, somente os nomes dos arquivos
+	 * nao deletados.
+	 * 
+	 * @return triplas high, low, stackid
+	 */
+	private static long[] liveNames(StackerEntry entry) throws IOException {
+		boolean loaded = entry.isHeaderLoaded();
+		byte[] localspace = entry.getNamespace();
+		int count = Math.min(localspace.length / Stack.HASHEDNAME_SIZE, entry.getNextId() - entry.firstId);
+
+		long[] names = new long[count * 3];
+		int n = 0;
+		for (int k = 0; k < count; k++) {
+			if (!entry.isDeleted(entry.firstId + k)) {
+				names[n++] = NameIndex.high(localspace, k * Stack.HASHEDNAME_SIZE);
+				names[n++] = NameIndex.low(localspace, k * Stack.HASHEDNAME_SIZE);
+				names[n++] = entry.firstId + k;
+			}
+		}
+
+		// Lazy: o header foi carregado somente para isso
+		if (!loaded) {
+			entry.unloadHeader();
+		}
+		return Arrays.copyOf(names, n);
+	}
+
+	/**
+	 * Executa as tarefas em um ForkJoinPool com parallelism threads (ou na
+	 * thread atual, se parallelism <= 1).
+	 * 
+	 * @return os resultados, na ordem das tarefas
+	 */
+	private static <T> List<T> invokeAll(List<Callable<T>> tasks, int parallelism) throws IOException {
+		List<T> results = new ArrayList<T>(tasks.size());
+
+		if (parallelism <= 1 || tasks.size() <= 1) {
+			for (Callable<T> task : tasks) {
+				try {
+					results.add(task.call());
+				} catch (IOException ioe) {
+					throw ioe;
+				} catch (Exception e) {
+					throw new IOException(e);
+				}
+			}
+			return results;
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(Math.min(parallelism, tasks.size()));
+		try {
+			for (Future<T> future : pool.invokeAll(tasks)) {
+				results.add(future.get());
+			}
+			return results;
+		} catch (ExecutionException ee) {
+			if (ee.getCause() instanceof IOException) {
+				throw (IOException) ee.getCause();
+			}
+			throw new IOException(ee.getCause());
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("stack loading interrupted");
+		} finally {
+			pool.shutdown();
+		}
 	}
 
 	public static Stacker loadStacker(final String path) throws IOException {
@@ -91,16 +429,41 @@ public class Stacker {
 	}
 
 	protected static LocalStack[] stacks(String path) throws IOException {
-		String[] extensions = { "stk" };
-		Collection<File> files = FileUtils.listFiles(new File(path), extensions, true);
-		Collections.sort((List<File>) files);
-		LocalStack[] stacks = new LocalStack[files.size()];
+		return stacks(path, new StackerConfig());
+	}
 
-		int count = 0;
-		for (File stackFile : files) {
-			stacks[count++] = LocalStack.loadStack(stackFile);
+	/**
+	 * Carrega as stacks de path, ordenadas pelo nome do arquivo, com
+	 * config.getLoadParallelism() threads.
+	 */
+	protected static LocalStack[] stacks(String path, StackerConfig config) throws IOException {
+		final boolean lazy = config.isLazyHeaders();
+		String[] extensions = { "stk" };
+		List<File> files = new ArrayList<File>(FileUtils.listFiles(new File(path), extensions, true));
+		Collections.sort(files);
+
+		List<Callable<LocalStack>> tasks = new ArrayList<Callable<LocalStack>>(files.size());
+		for (final File stackFile : files) {
+			tasks.add(new Callable<LocalStack>() {
+				@Override
+				public LocalStack call() throws IOException {
+					return LocalStack.loadStack(stackFile, lazy);
+				}
+			});
 		}
 
+		LocalStack[] stacks = invokeAll(tasks, config.getLoadParallelism()).toArray(new LocalStack[files.size()]);
+		// Um log que sobrou e' sempre refeito, mesmo sem o log nesta sessao:
+		// senao um load futuro com o log refaria registros ja velhos
+		File logFile = new File(path, LOG_FILE);
+		if (logFile.exists()) {
+			NameHasher hasher = stacks.length > 0 ? stacks[0].getNameHasher() : config.getNameHasher();
+			stacks = WriteAheadLog.replay(logFile, stacks, path, hasher);
+			// O replay ja forcou as stacks
+			if (!config.isWriteAheadLog() && !logFile.delete()) {
+				throw new IOException("could not delete " + logFile + " after replaying it");
+			}
+		}
 		return stacks;
 	}
 
@@ -109,119 +472,576 @@ public class Stacker {
 		return new Stacker(path, stacks, threadSafe, compression);
 	}
 
+	public static Stacker loadStacker(final String path, final StackerConfig config)  throws IOException {
+		LocalStack[] stacks = stacks(path, config);
+		return new Stacker(path, stacks, config);
+	}
+
 	public int addFile(final String filename, byte[] filedata) {
+		/*
+		 * se current  nulo crie nova stack se o nome ja existe, delete o
+		 * arquivo current.append se append retorna false, current = null
+		 * recursivo se foi ok atualiza namespace
+		 */
+		if (useCompression)
+			filedata = StackUtils.compress(filedata);
+
+		// O nome e' hasheado uma vez so, para todo o addFile
+		byte[] hashedName = hasher.hash(filename);
+		int stackid;
+		if (tails != null) {
+			stackid = addStriped(hashedName, filename, filedata);
+		} else {
+			long stamp = lock.writeLock();
+			try {
+				stackid = add(hashedName, filename, filedata);
+			} finally {
+				lock.unlockWrite(stamp);
+			}
+		}
+
+		// O arquivo ja esta no Stacker, mesmo se o sync falhar
+		if (stackid >= 0) {
+			commit(filedata.length);
+		}
+		return stackid;
+	}
+
+	/**
+	 * Aplica a politica de durabilidade depois de uma escrita de bytes bytes,
+	 * sempre fora do lock do Stacker: com o log, escritas concorrentes
+	 * dividem o mesmo fsync. Uma falha nao desfaz a escrita: fica em
+	 * getSyncFailure().
+	 */
+	private void commit(long bytes) {
+		switch (durability) {
+		case NONE:
+			return;
+		case PERIODIC:
+			long pending = unsyncedBytes.addAndGet(bytes);
+			if (pending < config.getSyncBytes()
+					&& System.currentTimeMillis() - lastSync < config.getSyncInterval()) {
+				return;
+			}
+			// Um sync so por intervalo: o da thread que zerar o contador
+			if (!unsyncedBytes.compareAndSet(pending, 0)) {
+				return;
+			}
+			lastSync = System.currentTimeMillis();
+			break;
+		case PER_BATCH:
+			break;
+		}
+
+		try {
+			sync();
+		} catch (IOException ioe) {
+			logger.error("Nao foi possivel gravar no disco as escritas em " + stacksPath, ioe);
+		}
+	}
+
+	/**
+	 * @return the error of the last sync done by the durability policy (or
+	 *         by {@link #sync()}), or null if it succeeded: the files added
+	 *         or deleted since then are in the Stacker, but may not be on the
+	 *         disk yet
+	 */
+	public IOException getSyncFailure() {
+		return syncFailure;
+	}
+
+	/**
+	 * Forces every change made so far to the disk: the write-ahead log, if
+	 * there is one, or else the stacks themselves. Without the log, the
+	 * headers of the open stacks are written first (as by
+	 * {@link #optimize()}), so they point to all the appended files; only
+	 * that is done under the Stacker lock, the stacks are forced after it is
+	 * released.
+	 */
+	public void sync() throws IOException {
+		unsyncedBytes.set(0);
+		lastSync = System.currentTimeMillis();
+		try {
+			if (log != null) {
+				log.sync();
+			} else {
+				synchronized (forceLock) {
+					List<FileChannel> dirty = new ArrayList<FileChannel>();
+					long stamp = lock.writeLock();
+					try {
+						writeTails();
+						for (StackerEntry entry : entries) {
+							FileChannel channel = entry.takeUnsynced();
+							if (channel != null) {
+								dirty.add(channel);
+							}
+						}
+					} finally {
+						lock.unlockWrite(stamp);
+					}
+
+					// O fsync fora do lock, como o do log
+					for (FileChannel channel : dirty) {
+						channel.force(false);
+					}
+				}
+			}
+			syncFailure = null;
+		} catch (IOException ioe) {
+			syncFailure = ioe;
+			throw ioe;
+		}
+	}
+
+	/**
+	 * Um arquivo na fila do writer, ja hasheado e comprimido. Sem nome, e' so
+	 * uma marca: completada quando tudo antes dela foi escrito.
+	 */
+	private static class QueuedFile {
+		final byte[] hashedName;
+		final String name;
+		final byte[] data;
+		final CompletableFuture<Integer> future = new CompletableFuture<Integer>();
+
+		QueuedFile(byte[] hashedName, String name, byte[] data) {
+			this.hashedName = hashedName;
+			this.name = name;
+			this.data = data;
+		}
+	}
+
+	/**
+	 * Adds a file as {@link #addFile(String, byte[])} does, but through the
+	 * queue of {@link StackerConfig#setWriteQueue(int)}, if there is one: the
+	 * name is hashed (and the data compressed) by the calling thread, and the
+	 * file is appended later by the writer thread, in a batch with the other
+	 * queued files. Blocks while the queue is full.
+	 * 
+	 * Queued files are written in order, but not in order with the ones
+	 * added by addFile. {@link #optimize()} and {@link #close()} write the
+	 * queued files first.
+	 * 
+	 * @return the stackid (-1 if the file could not be added), completed
+	 *         when the file is added, as when addFile returns
+	 */
+	public CompletableFuture<Integer> addFileAsync(final String filename, byte[] filedata) {
+		if (writeQueue == null) {
+			return CompletableFuture.completedFuture(addFile(filename, filedata));
+		}
+
+		if (useCompression)
+			filedata = StackUtils.compress(filedata);
+		QueuedFile file = new QueuedFile(hasher.hash(filename), filename, filedata);
+		enqueue(file);
+		return file.future;
+	}
+
+	/**
+	 * Coloca na fila, esperando enquanto estiver cheia (backpressure). Se o
+	 * writer ja parou, o arquivo falha em vez de ficar na fila para sempre.
+	 */
+	private void enqueue(QueuedFile file) {
 		try {
-			lock.lock();
-			/*
-			 * se current  nulo crie nova stack se o nome ja existe, delete o
-			 * arquivo current.append se append retorna false, current = null
-			 * recursivo se foi ok atualiza namespace
-			 */
-			if (useCompression)
-				filedata = StackUtils.compress(filedata);
+			while (!writeQueue.offer(file, 100, TimeUnit.MILLISECONDS)) {
+				if (writerClosed) {
+					break;
+				}
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			file.future.completeExceptionally(ie);
+			return;
+		}
+
+		if (writerClosed && (writeQueue.remove(file) || !file.future.isDone())) {
+			file.future.completeExceptionally(new IllegalStateException("stacker " + stacksPath + " closed"));
+		}
+	}
 
+	/**
+	 * Waits until the files queued by {@link #addFileAsync(String, byte[])}
+	 * so far are written.
+	 */
+	public void flushQueue() throws IOException {
+		if (writeQueue == null || Thread.currentThread() == writer) { return; }
+
+		QueuedFile mark = new QueuedFile(null, null, null);
+		enqueue(mark);
+		try {
+			mark.future.get();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("flush of " + stacksPath + " interrupted");
+		} catch (ExecutionException ee) {
+			// Writer parado: nao ha mais nada a escrever
+			logger.debug("Fila de " + stacksPath + " ja fechada", ee.getCause());
+		}
+	}
 
+	/**
+	 * O writer: junta o que estiver na fila em lotes de ate WRITE_BATCH e
+	 * escreve cada lote com um addPrepared (um lock e um commit por lote).
+	 */
+	private void writeQueued() {
+		List<QueuedFile> batch = new ArrayList<QueuedFile>(WRITE_BATCH);
+		try {
+			while (true) {
+				batch.add(writeQueue.take());
+				writeQueue.drainTo(batch, WRITE_BATCH - 1);
+				if (!writeBatch(batch)) {
+					return;
+				}
+				batch.clear();
+			}
+		} catch (InterruptedException ie) {
+			// close
+		} finally {
+			// Nada mais sera escrito: o que entrar na fila depois de
+			// writerClosed e' retirado pelo proprio enqueue
+			writerClosed = true;
+			IllegalStateException closed = new IllegalStateException("stacker " + stacksPath + " closed");
+			for (QueuedFile file : batch) {
+				file.future.completeExceptionally(closed);
+			}
+			QueuedFile file;
+			while ((file = writeQueue.poll()) != null) {
+				file.future.completeExceptionally(closed);
+			}
+		}
+	}
+
+	/**
+	 * @return false se o lote tinha a marca de parada do close
+	 */
+	private boolean writeBatch(List<QueuedFile> batch) {
+		List<QueuedFile> files = new ArrayList<QueuedFile>(batch.size());
+		boolean stopped = false;
+		for (QueuedFile file : batch) {
+			if (file == stop) {
+				stopped = true;
+			} else if (file.name != null) {
+				files.add(file);
+			}
+		}
+
+		byte[][] hashes = new byte[files.size()][];
+		String[] names = new String[files.size()];
+		byte[][] data = new byte[files.size()][];
+		for (int i = 0; i < names.length; i++) {
+			hashes[i] = files.get(i).hashedName;
+			names[i] = files.get(i).name;
+			data[i] = files.get(i).data;
+		}
+		try {
+			int[] ids = (names.length > 0) ? addPrepared(hashes, names, data) : new int[0];
+			for (int i = 0; i < ids.length; i++) {
+				files.get(i).future.complete(ids[i]);
+			}
+		} catch (RuntimeException e) {
+			logger.error("Nao foi possivel escrever " + names.length + " docs da fila", e);
+			for (QueuedFile file : files) {
+				file.future.completeExceptionally(e);
+			}
+		}
+
+		for (QueuedFile file : batch) {
+			if (file.name == null) {
+				file.future.complete(0);
+			}
+		}
+		if (stopped) {
+			batch.clear();
+		}
+		return !stopped;
+	}
+
+	public int[] addFiles(Map<String, byte[]> files) {
+		return addFiles(files.entrySet());
+	}
+
+	/**
+	 * Adds several files at once, as if by {@link #addFile(String, byte[])}
+	 * for each one, in order (a repeated name keeps the last one). The names
+	 * are hashed, and the data compressed, in parallel on the common
+	 * ForkJoinPool; the files are then appended one after the other with a
+	 * single acquisition of the Stacker lock.
+	 * 
+	 * @return the stackid of each file, in the same order (-1 for the files
+	 *         that could not be added)
+	 */
+	public int[] addFiles(Iterable<Map.Entry<String, byte[]>> files) {
+		List<Map.Entry<String, byte[]>> batch = new ArrayList<Map.Entry<String, byte[]>>();
+		for (Map.Entry<String, byte[]> file : files) {
+			batch.add(file);
+		}
+
+		final String[] names = new String[batch.size()];
+		final byte[][] data = new byte[batch.size()][];
+		for (int i = 0; i < names.length; i++) {
+			names[i] = batch.get(i).getKey();
+			data[i] = batch.get(i).getValue();
+		}
+
+		final byte[][] hashes = new byte[names.length][];
+		Arrays.parallelSetAll(hashes, i -> hasher.hash(names[i]));
+		if (useCompression) {
+			Arrays.parallelSetAll(data, i -> StackUtils.compress(data[i]));
+		}
+
+		return addPrepared(hashes, names, data);
+	}
+
+	/**
+	 * addFiles com os nomes ja hasheados e os dados ja comprimidos (se a
+	 * compressao estiver ligada). Usado tambem pelo StackerImporter.
+	 */
+	int[] addPrepared(final byte[][] hashes, final String[] names, final byte[][] data) {
+		int[] ids = new int[names.length];
+		if (tails != null) {
+			// Striped: cada arquivo vai para um stripe, como no addFile
+			for (int i = 0; i < names.length; i++) {
+				ids[i] = addStriped(hashes[i], names[i], data[i]);
+			}
+		} else {
+			long stamp = lock.writeLock();
+			try {
+				for (int i = 0; i < names.length; i++) {
+					ids[i] = add(hashes[i], names[i], data[i]);
+				}
+			} finally {
+				lock.unlockWrite(stamp);
+			}
+		}
+
+		// Um sync para o lote inteiro
+		long bytes = 0;
+		for (byte[] filedata : data) {
+			bytes += filedata.length;
+		}
+		commit(bytes);
+		return ids;
+	}
+
+	/**
+	 * addFile com varias stacks abertas: o append em si (a escrita dos dados)
+	 * acontece fora do lock do Stacker, somente com o lock da stack
+	 * escolhida, entao writers em stripes diferentes rodam em paralelo.
+	 */
+	private int addStriped(final byte[] hashedName, final String filename, final byte[] filedata) {
+		if (filedata.length > Stack.MAX_FILE_SIZE) {
+			logger.warn("Doc " + filename + " maior que " + Stack.MAX_FILE_SIZE + " bytes");
+			return -1;
+		}
+
+		Lock nameLock = nameLocks[(hashedName[0] & 0xFF) % NAME_LOCKS];
+		int stripe = (nextStripe.getAndIncrement() & Integer.MAX_VALUE) % tails.length;
+		try {
+			nameLock.lock();
+			while (true) {
+				StackerEntry tail;
+				long stamp = lock.writeLock();
+				try {
+					int result;
+					if ((result = idOf(hashedName)) != -1) {
+						delete(result);
+					}
+
+					int replace_id = tryToReplace(hashedName, filename, filedata);
+					if (replace_id >= 0) { return replace_id; }
+
+					tail = tails[stripe];
+					if (tail == null) {
+						tail = tails[stripe] = createTailStack();
+					}
+				} finally {
+					lock.unlockWrite(stamp);
+				}
+
+				int stackid = tail.appendFile(hashedName, filedata);
+
+				stamp = lock.writeLock();
+				try {
+					if (stackid < 0) {
+						// Stack cheia (e ja selada): a proxima volta cria outra
+						if (tails[stripe] == tail) {
+							tails[stripe] = null;
+						}
+						continue;
+					}
+
+					if (namespace != null)
+						namespace.put(hashedName, stackid);
+					totalDocs++;
+					if (stackid >= nextStackId) {
+						nextStackId = stackid + 1;
+					}
+					return stackid;
+				} finally {
+					lock.unlockWrite(stamp);
+				}
+			}
+		} catch (IOException ioe) {
+			logger.warn("Nao foi possivel adicionar o doc " + filename + " na stack", ioe);
+			return -1;
+		} finally {
+			nameLock.unlock();
+		}
+	}
+
+	/**
+	 * addFile, com o write lock ja pego.
+	 */
+	private int add(final byte[] hashedName, final String filename, final byte[] filedata) {
+		// Nao cabe nem numa stack vazia: cada nova stack falharia de novo
+		if (filedata.length > Stack.MAX_FILE_SIZE) {
+			logger.warn("Doc " + filename + " maior que " + Stack.MAX_FILE_SIZE + " bytes");
+			return -1;
+		}
+
+		try {
 			int result;
-			if ((result = nameToId(filename)) != -1) {
-				deleteFile(result);
+			if ((result = idOf(hashedName)) != -1) {
+				delete(result);
 			}
 
 			// TODO tenta replaceSlot
-			int replace_id = tryToReplace(filename, filedata);
+			int replace_id = tryToReplace(hashedName, filename, filedata);
 			if (replace_id >= 0) { return replace_id; }
 
 			if (lastEntry == null) {
 				createNewStack();
 			}
 
-			if (lastEntry.append(filename, filedata)) {
-				namespace.put(StackUtils.strToHexaMD5(filename), nextStackId);
-				int return_stackid = nextStackId;
+			// O id vem da propria stack, lido sob o lock dela
+			int stackid = lastEntry.appendFile(hashedName, filedata);
+			if (stackid >= 0) {
+				if (namespace != null)
+					namespace.put(hashedName, stackid);
 				totalDocs++;
 				nextStackId = lastEntry.getNextId();
-				return return_stackid;
+				return stackid;
 			} else {
 				lastEntry = null;
-				return addFile(filename, filedata);
+				return add(hashedName, filename, filedata);
 			}
 		} catch (IOException ioe) {
-			logger.warn("No foi possvel adicionar o doc " + filename + " na stack", ioe);
+			logger.warn("Nao foi possivel adicionar o doc " + filename + " na stack", ioe);
 			return -1;
-		} finally {
-			lock.unlock();
 		}
 	}
 
-	private int tryToReplace(final String filename, final byte[] filedata)
+	private int tryToReplace(final byte[] hashedName, final String filename, final byte[] filedata)
 			throws IOException {
-		try {
-			lock.lock();
-			int datasize = filedata.length;
-
-			if (freeSlots.size() == 0) { 
-				return -1; 
-			}
+		int datasize = filedata.length;
 
-			if (datasize > freeSlots.get(freeSlots.size() - 1).size) {
-				// System.err.println(", "+datasize+" no cabe em nenhum slot! Maior slot: "+freeSlots.get(freeSlots.size()-1).size);
-				return -2;
-			}
+		if (freeSlots.size() == 0) { 
+			return -1; 
+		}
 
-			StackFreeSlot slot = searchSlot(0, freeSlots.size() - 1, datasize);
+		if (datasize > freeSlots.get(freeSlots.size() - 1).size) {
+			return -2;
+		}
 
-			if (slot.stack.replace(slot.position, filename, filedata)) {
-				logger.debug("Utilizando slot vago " + slot + " para " + filename);
-				namespace.put(StackUtils.strToHexaMD5(filename), (slot.stack.firstId + slot.position));
-				freeSlots.remove(slot);
-				// Collections.sort(freeSlots);
-				return (slot.stack.firstId + slot.position);
-			} else {
-				return -3;
-			}
+		StackFreeSlot slot = searchSlot(0, freeSlots.size() - 1, datasize);
 
+		boolean replaced;
+		invalidations++;
+		try {
+			replaced = slot.stack.replace(slot.position, hashedName, filedata);
 		} finally {
-			lock.unlock();
+			invalidations++;
+		}
+		if (replaced) {
+			invalidateCache(slot.stack.firstId + slot.position);
+			logger.debug("Utilizando slot vago " + slot + " para " + filename);
+			if (namespace != null)
+				namespace.put(hashedName, (slot.stack.firstId + slot.position));
+			freeSlots.remove(slot);
+			// Collections.sort(freeSlots);
+			return (slot.stack.firstId + slot.position);
+		} else {
+			return -3;
 		}
 	}
 
 	public boolean deleteFile(String stackFile) throws IOException {
-		int stackid = nameToId(stackFile);
-		if (stackid >= 0)
-			return deleteFile(stackid);
-		else
-			return false;
+		byte[] hashedName = hasher.hash(stackFile);
+		boolean deleted;
+		long stamp = lock.writeLock();
+		try {
+			int stackid = idOf(hashedName);
+			deleted = stackid >= 0 && delete(stackid);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+		if (deleted) {
+			commit(Integer.SIZE / 8);
+		}
+		return deleted;
 	}
 
 	public boolean deleteFile(int stackid) throws IOException {
+		boolean deleted;
+		long stamp = lock.writeLock();
 		try {
+			deleted = delete(stackid);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+		if (deleted) {
+			commit(Integer.SIZE / 8);
+		}
+		return deleted;
+	}
 
-			lock.lock();
-			logger.debug("Vou tentar deletar " + stackid);
-			StackerEntry entry = searchEntry(stackid);
+	/**
+	 * deleteFile, com o write lock ja pego.
+	 */
+	private boolean delete(int stackid) throws IOException {
+		logger.debug("Vou tentar deletar " + stackid);
+		StackerEntry entry = searchEntry(stackid);
+		if (entry == null) { 
+			return false; 
+		}
 
-			StackFreeSlot slot = entry.deleteFile(stackid);
+		StackFreeSlot slot;
+		invalidations++;
+		try {
+			slot = entry.deleteFile(stackid);
+		} finally {
+			invalidations++;
+		}
+		invalidateCache(stackid);
 
-			if (slot == null)
-				return false;
+		if (slot == null)
+			return false;
 
-			// totalDocs--;
-			if (!useCompression) {
-				freeSlots.add(slot);
-				Collections.sort(freeSlots);
-			}
-			// printSlotList();
+		// totalDocs--;
+		// Um slot ainda no arquivo temporario nao pode ser sobrescrito no
+		// arquivo da stack: fica perdido ate a stack ser recarregada
+		if (!useCompression && !entry.hasPendingAppends()) {
+			freeSlots.add(slot);
+			Collections.sort(freeSlots);
+		}
+		// printSlotList();
+
+		deleted_stackids.add(stackid);
+		if (namespace == null) { 
+			return true; 
+		}
 
-			deleted_stackids.add(stackid);
-			String name_to_remove = namespace.inverse().get(stackid);
-			logger.debug("Adicionando " + name_to_remove + "(" + stackid
+		byte[] name_to_remove = entry.getHashedName(stackid);
+		if (logger.isDebugEnabled()) {
+			logger.debug("Adicionando " + StackUtils.toHexadecimal(name_to_remove) + "(" + stackid
 					+ ")	na lista de deletados (before: "
 					+ deleted_stackids.size() + ")");
+		}
+		// Somente se o nome ainda aponta para este stackid
+		if (namespace.get(name_to_remove) == stackid) {
 			namespace.remove(name_to_remove);
-
-			return true;
-		} finally {
-			lock.unlock();
 		}
+
+		return true;
 	}
 
 	/**
@@ -252,28 +1072,104 @@ public class Stacker {
 	 * 
 	 */
 	private final void createNewStack() {
-		lastEntry = new StackerEntry(new LocalStack(nextStackId, stacksPath), singleMode);
+		LocalStack stack = new LocalStack(nextStackId, stacksPath);
+		stack.setNameHasher(hasher);
+		lastEntry = newEntry(stack);
 		StackerEntry[] backup = entries;
 		entries = new StackerEntry[backup.length + 1];
 		System.arraycopy(backup, 0, entries, 0, backup.length);
 		entries[entries.length - 1] = lastEntry;
 	}
 
+	/**
+	 * Nova stack para um stripe, no proximo bloco livre de stackids.
+	 */
+	private StackerEntry createTailStack() {
+		LocalStack stack = new LocalStack(nextBlock, stacksPath);
+		stack.setNameHasher(hasher);
+		nextBlock += Stack.MAX_FILES;
+
+		StackerEntry entry = newEntry(stack);
+		StackerEntry[] backup = entries;
+		StackerEntry[] grown = Arrays.copyOf(backup, backup.length + 1);
+		grown[backup.length] = entry;
+		entries = grown;
+		return entry;
+	}
+
+	private StackerEntry newEntry(LocalStack stack) {
+		stack.setMappedReads(config.isMappedReads());
+		stack.setInPlaceAppends(config.isInPlaceAppends());
+		stack.setIoExecutor(config.getIoExecutor());
+		stack.setLoadedHeaders(loadedHeaders);
+		StackerEntry entry = new StackerEntry(stack, singleMode);
+		entry.setLog(log);
+		return entry;
+	}
+
+	public NameHasher getNameHasher() {
+		return hasher;
+	}
+
 	public boolean contains(String filename) {
 		return nameToId(filename) > -1;
 	}
 
 	public int nameToId(final String filename) {
-		try {
-			lock.lock();
-			String hash = StackUtils.strToHexaMD5(filename);
-			Integer i = namespace.get(hash);
-			if (i == null) { 
-				return -1; 
+		return nameToId(hasher.hash(filename));
+	}
+
+	/**
+	 * @param hashedName
+	 *            the name hashed with {@link #getNameHasher()}
+	 */
+	protected int nameToId(final byte[] hashedName) {
+		if (namespace != null) {
+			long stamp = lock.tryOptimisticRead();
+			if (stamp != 0) {
+				try {
+					int stackid = namespace.get(hashedName);
+					if (lock.validate(stamp)) { 
+						return stackid; 
+					}
+				} catch (RuntimeException e) {
+					// Uma escrita mudou a tabela no meio da leitura: o
+					// resultado seria descartado de qualquer forma
+				}
 			}
-			return i;
+		}
+
+		long stamp = lock.readLock();
+		try {
+			return idOf(hashedName);
 		} finally {
-			lock.unlock();
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * nameToId, com o lock (read ou write) ja pego.
+	 */
+	private int idOf(final byte[] hashedName) {
+		if (namespace != null) { 
+			return namespace.get(hashedName); 
+		}
+
+		try {
+			// Sem namespace global: procura nas stacks cujo Bloom filter
+			// aceita o nome, da mais nova para a mais antiga
+			StackerEntry[] snapshot = entries;
+			int stackid = -1;
+			for (int i = snapshot.length - 1; i >= 0 && stackid < 0; i--) {
+				if (snapshot[i].mightContain(hashedName)) {
+					stackid = snapshot[i].find(hashedName);
+				}
+			}
+			trimHeaders();
+			return stackid;
+		} catch (IOException ioe) {
+			logger.warn("Nao foi possivel procurar " + StackUtils.toHexadecimal(hashedName) + " nas stacks", ioe);
+			return -1;
 		}
 	}
 
@@ -286,56 +1182,449 @@ public class Stacker {
 		return searchFile(stackid);
 	}
 
+	/**
+	 * Lock-free: neither the Stacker lock nor the entry lock are taken, the
+	 * data is read with positional reads from the stack file, or taken from
+	 * the record cache, if there is one.
+	 */
 	public byte[] searchFile(final int stackid) throws IOException {
 		// XXX byte[0], null ou exceptions?
-		if (stackid >= nextStackId) { 
+		if (stackid < 0 || stackid >= nextStackId) { 
 			return new byte[0]; 
 		}
 
-		byte[] data;
+		long generation = invalidations;
+		if (cache != null) {
+			byte[] cached = cache.get(stackid);
+			if (cached != null) {
+				return cacheRaw ? StackUtils.uncompress(cached) : cached;
+			}
+		}
+
+		StackerEntry entry = searchEntry(stackid);
+		if (entry == null) { 
+			return new byte[0]; 
+		}
+		byte[] data = entry.read(stackid);
+
+		if (cache != null && cacheRaw) {
+			cachePut(stackid, data, generation);
+		}
+
+		if (useCompression)
+			data = StackUtils.uncompress(data);
+
+		if (cache != null && !cacheRaw) {
+			cachePut(stackid, data, generation);
+		}
+
+		return data;
+	}
+
+	/**
+	 * Coloca no cache somente se nenhuma escrita estava em andamento na
+	 * leitura (generation par) nem aconteceu desde ela. Confere de novo
+	 * depois do put: se uma escrita ocorreu no meio, o dado pode ser velho.
+	 */
+	private void cachePut(int stackid, byte[] data, long generation) {
+		if ((generation & 1) != 0 || generation != invalidations) { return; }
+
+		cache.put(stackid, data);
+		if (generation != invalidations) {
+			cache.invalidate(stackid);
+		}
+	}
+
+	private void invalidateCache(int stackid) {
+		if (cache != null) {
+			cache.invalidate(stackid);
+		}
+	}
+
+	/**
+	 * Asynchronous version of {@link #searchFile(int)}. The read runs on the
+	 * stack's AsynchronousFileChannel, whose pool is set with
+	 * {@link StackerConfig#setIoExecutor}; the caller thread is never blocked
+	 * on disk. Uncompression, if any, runs on that pool too.
+	 */
+	public CompletableFuture<byte[]> searchFileAsync(final int stackid) {
+		if (stackid < 0 || stackid >= nextStackId) { 
+			return CompletableFuture.completedFuture(new byte[0]); 
+		}
+
+		StackerEntry entry = searchEntry(stackid);
+		if (entry == null) { 
+			return CompletableFuture.completedFuture(new byte[0]); 
+		}
+
+		CompletableFuture<byte[]> future;
 		try {
-			lock.lock();
+			future = entry.readAsync(stackid);
+		} catch (IOException ioe) {
+			future = new CompletableFuture<byte[]>();
+			future.completeExceptionally(ioe);
+			return future;
+		}
+
+		if (useCompression) {
+			return future.thenApply(StackUtils::uncompress);
+		}
+		return future;
+	}
+
+	public CompletableFuture<byte[]> searchFileAsync(final String filename) {
+		return searchFileAsync(nameToId(filename));
+	}
+
+	/**
+	 * Multi-get: searches several files at once. The stackids are grouped by
+	 * stack and sorted, so each stack is read forward, with neighbour files
+	 * coalesced into larger reads. Lock-free, as {@link #searchFile(int)}.
+	 * 
+	 * @return the files, in the same order of stackids (empty byte[] for the
+	 *         stackids that do not exist)
+	 */
+	public byte[][] searchFiles(final int[] stackids) throws IOException {
+		byte[][] results = new byte[stackids.length][];
+		int limit = nextStackId;
+
+		// stackid nos 32 bits altos, indice original nos baixos: um sort so
+		long[] order = new long[stackids.length];
+		for (int i = 0; i < stackids.length; i++) {
+			order[i] = ((long) stackids[i] << 32) | i;
+		}
+		Arrays.sort(order);
+
+		int i = 0;
+		while (i < order.length) {
+			int stackid = (int) (order[i] >> 32);
+			if (stackid < 0 || stackid >= limit) {
+				results[(int) order[i++]] = new byte[0];
+				continue;
+			}
+
+			// Agrupa os stackids da mesma stack
 			StackerEntry entry = searchEntry(stackid);
-			data = entry.get(stackid);
+			if (entry == null) {
+				results[(int) order[i++]] = new byte[0];
+				continue;
+			}
+			int lastId = entry.getLastId();
+			int j = i + 1;
+			while (j < order.length && (int) (order[j] >> 32) <= lastId) {
+				j++;
+			}
 
-			if (useCompression)
-				data = StackUtils.uncompress(data);
+			int[] group = new int[j - i];
+			for (int k = 0; k < group.length; k++) {
+				group[k] = (int) (order[i + k] >> 32);
+			}
 
-		} finally {
-			lock.unlock();
+			byte[][] data = entry.read(group);
+			for (int k = 0; k < group.length; k++) {
+				results[(int) order[i + k]] = useCompression ? StackUtils.uncompress(data[k]) : data[k];
+			}
+			i = j;
 		}
 
-		return data;
+		return results;
+	}
+
+	public byte[][] searchFiles(final String[] filenames) throws IOException {
+		int[] stackids = new int[filenames.length];
+		for (int i = 0; i < filenames.length; i++) {
+			stackids[i] = nameToId(filenames[i]);
+		}
+
+		return searchFiles(stackids);
 	}
 
+	/**
+	 * Like {@link #searchFile(int)}, but copies the file into dst instead of
+	 * allocating a new byte[]. Compressed files are uncompressed straight
+	 * into dst.
+	 * 
+	 * @return the size of the file, or -1 if the stackid does not exist
+	 * @throws java.nio.BufferOverflowException
+	 *             if dst has not enough space remaining
+	 */
+	public int readInto(final int stackid, ByteBuffer dst) throws IOException {
+		if (stackid < 0 || stackid >= nextStackId) { 
+			return -1; 
+		}
+
+		StackerEntry entry = searchEntry(stackid);
+		if (entry == null) { 
+			return -1; 
+		}
+		if (useCompression) {
+			return StackUtils.uncompress(entry.read(stackid), dst);
+		}
+		return entry.read(stackid, dst);
+	}
+
+	public int readInto(final String filename, ByteBuffer dst) throws IOException {
+		int stackid = nameToId(filename);
+		if (stackid == -1) { 
+			return -1; 
+		}
+
+		return readInto(stackid, dst);
+	}
+
+	/**
+	 * Sends the file to target using FileChannel.transferTo from the stack
+	 * file, so it is never copied to the Java heap. With compression the
+	 * file must be uncompressed first, so this is just a searchFile + write.
+	 * 
+	 * @return the amount of bytes written, or -1 if the stackid does not exist
+	 */
+	public long transferTo(final int stackid, WritableByteChannel target) throws IOException {
+		if (stackid < 0 || stackid >= nextStackId) { 
+			return -1; 
+		}
+
+		StackerEntry entry = searchEntry(stackid);
+		if (entry == null) { 
+			return -1; 
+		}
+
+		if (useCompression) {
+			ByteBuffer data = ByteBuffer.wrap(searchFile(stackid));
+			while (data.hasRemaining()) {
+				target.write(data);
+			}
+			return data.capacity();
+		}
+
+		return entry.transferTo(stackid, target);
+	}
+
+	public long transferTo(final String filename, WritableByteChannel target) throws IOException {
+		int stackid = nameToId(filename);
+		if (stackid == -1) { 
+			return -1; 
+		}
+
+		return transferTo(stackid, target);
+	}
+
+	/**
+	 * Opens a stream over the file, read straight from the stack file as it
+	 * is consumed, so large files do not need a byte[] of their full size.
+	 * 
+	 * Compressed files are stored as a single Snappy block, which cannot be
+	 * uncompressed incrementally: with compression the file is uncompressed
+	 * at once and the stream reads from memory.
+	 * 
+	 * @return the stream (empty if the stackid does not exist)
+	 */
+	public InputStream openStream(final int stackid) throws IOException {
+		if (stackid < 0 || stackid >= nextStackId) { 
+			return new ByteArrayInputStream(new byte[0]); 
+		}
+
+		StackerEntry entry = searchEntry(stackid);
+		if (entry == null) { 
+			return new ByteArrayInputStream(new byte[0]); 
+		}
+
+		if (useCompression) {
+			return new ByteArrayInputStream(searchFile(stackid));
+		}
+
+		return entry.openStream(stackid);
+	}
+
+	public InputStream openStream(final String filename) throws IOException {
+		int stackid = nameToId(filename);
+		if (stackid == -1) { 
+			return new ByteArrayInputStream(new byte[0]); 
+		}
+
+		return openStream(stackid);
+	}
+
+	/**
+	 * @return the stack with this stackid, or null if there is none
+	 */
 	public StackerEntry searchEntry(final int stackid) {
-		return searchEntry(0, entries.length, stackid);
+		trimHeaders();
+		StackerEntry[] snapshot = entries;
+		return searchEntry(snapshot, 0, snapshot.length, stackid);
+	}
+
+	/**
+	 * Numero de stacks com offsets e nomes em memoria.
+	 */
+	public int getLoadedHeaders() {
+		return loadedHeaders.get();
+	}
+
+	/**
+	 * Descarrega os headers das stacks usadas ha mais tempo, ate voltar ao
+	 * limite de StackerConfig.getMaxLoadedHeaders(). LRU aproximado: ordena
+	 * pelo ultimo acesso de cada stack, sem lista ligada nem lock nas
+	 * leituras. Somente uma thread faz isso por vez; as outras seguem.
+	 */
+	private void trimHeaders() {
+		int max = config.getMaxLoadedHeaders();
+		if (max <= 0 || loadedHeaders.get() <= max) { return; }
+		if (!trimming.compareAndSet(false, true)) { return; }
+
+		try {
+			StackerEntry[] snapshot = entries;
+			final long[] lastAccess = new long[snapshot.length];
+			List<Integer> loaded = new ArrayList<Integer>();
+			for (int i = 0; i < snapshot.length; i++) {
+				if (snapshot[i].isHeaderLoaded() && snapshot[i].isSealed()) {
+					// Copia: o ultimo acesso muda durante o sort
+					lastAccess[i] = snapshot[i].getLastAccess();
+					loaded.add(i);
+				}
+			}
+			Collections.sort(loaded, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer a, Integer b) {
+					return Long.compare(lastAccess[a], lastAccess[b]);
+				}
+			});
+
+			for (int i : loaded) {
+				if (loadedHeaders.get() <= max) {
+					break;
+				}
+				snapshot[i].unloadHeader();
+			}
+		} finally {
+			trimming.set(false);
+		}
 	}
 
 	public StackerEntry searchEntry(int first, int last, int stackid) {
+		return searchEntry(entries, first, last, stackid);
+	}
+
+	private static StackerEntry searchEntry(StackerEntry[] entries, int first, int last, int stackid) {
+		// Nenhuma stack tem o stackid: fora dos limites, ou num buraco entre
+		// duas stacks (modo striped)
+		if (first >= last) { 
+			return null; 
+		}
+
 		// Defensiva: evita overflow
-		int pivot = first / 2 + last / 2;
+		int pivot = (first + last) >>> 1;
 
 		if (stackid < entries[pivot].firstId) { 
-			return searchEntry(first, pivot, stackid); 
+			return searchEntry(entries, first, pivot, stackid); 
 		}
 
 		if (stackid > entries[pivot].getLastId()) { 
-			return searchEntry(pivot + 1, last, stackid); 
+			return searchEntry(entries, pivot + 1, last, stackid); 
 		}
 
 		return entries[pivot];
 	}
 
 	public void optimize() throws IOException {
-		lastEntry.writeStack();
+		flushQueue();
+		long stamp = lock.writeLock();
+		try {
+			writeAndCheckpoint();
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Escreve as stacks abertas e, com o log, faz o checkpoint: o que foi
+	 * logado antes de mark ja esta nas stacks, que vao para o disco antes de
+	 * o log ser cortado. Com o write lock.
+	 */
+	private void writeAndCheckpoint() throws IOException {
+		long mark = (log != null) ? log.mark() : 0;
+		writeTails();
+
+		if (log != null) {
+			for (StackerEntry entry : entries) {
+				entry.sync();
+			}
+			log.checkpoint(mark);
+		}
+	}
+
+	/**
+	 * Escreve nas stacks abertas os appends pendentes, com o write lock.
+	 */
+	private void writeTails() throws IOException {
+		if (tails != null) {
+			for (StackerEntry tail : tails) {
+				if (tail != null) {
+					tail.writeStack();
+				}
+			}
+		} else if (lastEntry != null) {
+			lastEntry.writeStack();
+		}
 	}
 
 	public void close() {
+		stopWriter();
+		long stamp = lock.writeLock();
+		try {
+			// Com o log, fecha com ele vazio: uma sessao seguinte sem o log
+			// nao pode deixar para tras registros que ja estao nas stacks
+			if (log != null && entries != null) {
+				try {
+					writeAndCheckpoint();
+				} catch (IOException ioe) {
+					logger.error("Nao foi possivel esvaziar o " + LOG_FILE + " em " + stacksPath, ioe);
+				}
+			}
+			closeStacks();
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Escreve o que estiver na fila e para o writer.
+	 */
+	private void stopWriter() {
+		if (writer == null || Thread.currentThread() == writer || writerClosed) { return; }
+
+		enqueue(stop);
+		try {
+			writer.join();
+		} catch (InterruptedException ie) {
+			writer.interrupt();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void closeStacks() {
+		if (namespace instanceof MappedNameIndex) {
+			try {
+				((MappedNameIndex) namespace).close(fingerprint(entries));
+			} catch (IOException ioe) {
+				logger.warn("Nao foi possivel fechar o " + NAMESPACE_FILE, ioe);
+			}
+		}
+
 		for (StackerEntry entry : entries) {
 			entry.close();
 		}
 		entries = null;
+		if (log != null) {
+			try {
+				log.close();
+			} catch (IOException ioe) {
+				logger.warn("Nao foi possivel fechar o " + LOG_FILE, ioe);
+			}
+		}
+		if (cache != null) {
+			cache.clear();
+		}
 	}
 
 	public void freeEntriesNamespaces() {
@@ -346,7 +1635,7 @@ public class Stacker {
 
 	public boolean isDeleted(int stackid) throws IOException {
 		StackerEntry entry = searchEntry(stackid);
-		return entry.isDeleted(stackid);
+		return entry != null && entry.isDeleted(stackid);
 	}
 
 	public void printSlotList() {
@@ -367,11 +1656,10 @@ public class Stacker {
 		return entries;
 	}
 
+	/**
+	 * @return the highest stackid given so far, or -1
+	 */
 	public int getLastId() {
-		if (entries.length == 0) { 
-			return -1; 
-		}
-
-		return entries[entries.length - 1].getLastId();
+		return nextStackId - 1;
 	}
 }
\ No newline at end of file
@@ -0,0 +1,354 @@
+package org.filestacker.service;
+
+import java.util.concurrent.ExecutorService;
+
+import org.filestacker.cache.RecordCache;
+import org.filestacker.utils.NameHasher;
+
+/**
+ * Options for a {@link Stacker}. Every setter returns the config itself, so
+ * they can be chained:
+ *
+ * <pre>
+ * Stacker stacker = new Stacker(path, new StackerConfig().setMappedReads(true));
+ * </pre>
+ *
+ * @author daniel
+ */
+public class StackerConfig implements Cloneable {
+
+	private boolean threadSafe = true;
+	private boolean compression = false;
+	private boolean mappedReads = false;
+	private boolean inPlaceAppends = false;
+	private ExecutorService ioExecutor = null;
+	private RecordCache recordCache = null;
+	private boolean cacheCompressed = false;
+	private boolean namespaceFile = false;
+	private int loadParallelism = 1;
+	private boolean lazyHeaders = false;
+	private int maxLoadedHeaders = 0;
+	private boolean globalNamespace = true;
+	private NameHasher nameHasher = NameHasher.MD5;
+	private int appendStripes = 1;
+	private boolean writeAheadLog = false;
+	private Durability durability = null;
+	private long syncInterval = 1000;
+	private long syncBytes = 4 * 1024 * 1024;
+	private int writeQueue = 0;
+
+	/**
+	 * When the writes of a Stacker are forced to the disk, see
+	 * {@link StackerConfig#setDurability(Durability)}.
+	 */
+	public enum Durability {
+		/**
+		 * Never: the OS writes the data back when it wants.
+		 */
+		NONE,
+		/**
+		 * After {@link StackerConfig#getSyncInterval()} ms or
+		 * {@link StackerConfig#getSyncBytes()} bytes written since the last
+		 * sync, checked on each write.
+		 */
+		PERIODIC,
+		/**
+		 * Before each addFile, addFiles or deleteFile returns.
+		 */
+		PER_BATCH
+	}
+
+	/**
+	 * @return a copy of this config, to be changed without changing this
+	 *         one. The record cache and the executor are shared, not copied.
+	 */
+	public StackerConfig copy() {
+		try {
+			return (StackerConfig) clone();
+		} catch (CloneNotSupportedException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	public boolean isThreadSafe() {
+		return threadSafe;
+	}
+
+	/**
+	 * If false, the entries use a FakeLock (single thread access only).
+	 */
+	public StackerConfig setThreadSafe(boolean threadSafe) {
+		this.threadSafe = threadSafe;
+		return this;
+	}
+
+	public boolean isCompression() {
+		return compression;
+	}
+
+	/**
+	 * Compress every file with Snappy before storing it.
+	 */
+	public StackerConfig setCompression(boolean compression) {
+		this.compression = compression;
+		return this;
+	}
+
+	public boolean isMappedReads() {
+		return mappedReads;
+	}
+
+	/**
+	 * Map sealed stacks (the ones that will never be appended again) with
+	 * FileChannel.map(READ_ONLY) and read from the mapping, without a syscall
+	 * per read.
+	 */
+	public StackerConfig setMappedReads(boolean mappedReads) {
+		this.mappedReads = mappedReads;
+		return this;
+	}
+
+	public boolean isInPlaceAppends() {
+		return inPlaceAppends;
+	}
+
+	/**
+	 * Append the files straight into the stack files, instead of a temporary
+	 * file in /tmp that {@link Stacker#optimize()} copies into the stack: the
+	 * data is written once and can be read right after addFile. optimize
+	 * still has to be called to record the new files in the stack headers.
+	 */
+	public StackerConfig setInPlaceAppends(boolean inPlaceAppends) {
+		this.inPlaceAppends = inPlaceAppends;
+		return this;
+	}
+
+	public ExecutorService getIoExecutor() {
+		return ioExecutor;
+	}
+
+	/**
+	 * Thread pool of the AsynchronousFileChannels used by
+	 * {@link Stacker#searchFileAsync(int)} (on newer JDKs, it may be a virtual
+	 * thread executor). If null, the JVM default pool is used. The Stacker
+	 * never shuts it down.
+	 */
+	public StackerConfig setIoExecutor(ExecutorService ioExecutor) {
+		this.ioExecutor = ioExecutor;
+		return this;
+	}
+
+	public RecordCache getRecordCache() {
+		return recordCache;
+	}
+
+	/**
+	 * Cache of the files returned by {@link Stacker#searchFile(int)}, e.g. a
+	 * {@link org.filestacker.cache.TinyLfuRecordCache}. Null (the default)
+	 * means no cache.
+	 */
+	public StackerConfig setRecordCache(RecordCache recordCache) {
+		this.recordCache = recordCache;
+		return this;
+	}
+
+	public boolean isCacheCompressed() {
+		return cacheCompressed;
+	}
+
+	/**
+	 * With compression, keep the files compressed in the record cache: more
+	 * files fit in the same budget, but every hit pays the uncompression.
+	 */
+	public StackerConfig setCacheCompressed(boolean cacheCompressed) {
+		this.cacheCompressed = cacheCompressed;
+		return this;
+	}
+
+	public boolean isNamespaceFile() {
+		return namespaceFile;
+	}
+
+	/**
+	 * Keep the namespace (name to stackid) in a memory-mapped file,
+	 * {@link Stacker#NAMESPACE_FILE}, next to the stacks. When the Stacker is
+	 * closed and loaded again with no changes to the stacks in between, the
+	 * namespace is not rebuilt from the stack headers.
+	 */
+	public StackerConfig setNamespaceFile(boolean namespaceFile) {
+		this.namespaceFile = namespaceFile;
+		return this;
+	}
+
+	public int getLoadParallelism() {
+		return loadParallelism;
+	}
+
+	/**
+	 * How many stacks {@link Stacker#loadStacker(String, StackerConfig)}
+	 * loads at the same time, on a ForkJoinPool created just for the load.
+	 * The default, 1, loads them one by one in the caller thread; on SSDs,
+	 * Runtime.availableProcessors() is a good value.
+	 */
+	public StackerConfig setLoadParallelism(int loadParallelism) {
+		this.loadParallelism = loadParallelism;
+		return this;
+	}
+
+	public boolean isLazyHeaders() {
+		return lazyHeaders;
+	}
+
+	/**
+	 * Load only the fixed header and the status of each stack at startup;
+	 * the offsets and names (about 640KB per stack) are read on first
+	 * access. The names are still needed at startup if the namespace must be
+	 * rebuilt, so this pays off together with
+	 * {@link #setNamespaceFile(boolean)}.
+	 */
+	public StackerConfig setLazyHeaders(boolean lazyHeaders) {
+		this.lazyHeaders = lazyHeaders;
+		return this;
+	}
+
+	public int getMaxLoadedHeaders() {
+		return maxLoadedHeaders;
+	}
+
+	/**
+	 * Maximum number of stacks with offsets and names in memory. When there
+	 * are more, the least recently used ones are dropped and will be read
+	 * again on the next access. The last stack, which receives the appends,
+	 * is never dropped. 0 (the default) means no limit.
+	 */
+	public StackerConfig setMaxLoadedHeaders(int maxLoadedHeaders) {
+		this.maxLoadedHeaders = maxLoadedHeaders;
+		return this;
+	}
+
+	public boolean isGlobalNamespace() {
+		return globalNamespace;
+	}
+
+	/**
+	 * If false, the Stacker keeps no global name to stackid table: a name is
+	 * looked up, from the newest stack to the oldest, only in the stacks
+	 * whose Bloom filter (about 10 bits per file, saved in a .bloom file next
+	 * to the stack) accepts it, and then in the hash table of the stack.
+	 * Saves about 27 bytes per file of heap, and the namespace rebuild at
+	 * load, at the cost of slower name lookups. With
+	 * {@link #setMaxLoadedHeaders(int)}, only the filters of the unused
+	 * stacks stay in memory. {@link #setNamespaceFile(boolean)} is ignored.
+	 */
+	public StackerConfig setGlobalNamespace(boolean globalNamespace) {
+		this.globalNamespace = globalNamespace;
+		return this;
+	}
+
+	public NameHasher getNameHasher() {
+		return nameHasher;
+	}
+
+	/**
+	 * Hash function of the file names of new stacks. It is recorded in the
+	 * stack header: a Stacker loaded from existing stacks keeps using their
+	 * hash, whatever is set here. Default: {@link NameHasher#MD5}.
+	 */
+	public StackerConfig setNameHasher(NameHasher nameHasher) {
+		this.nameHasher = nameHasher;
+		return this;
+	}
+
+	public int getAppendStripes() {
+		return appendStripes;
+	}
+
+	/**
+	 * How many stacks receive appends at the same time. With more than one,
+	 * concurrent addFile calls are spread over the open stacks (round-robin)
+	 * and write their data in parallel; only the namespace update is
+	 * serialized. Each open stack reserves a block of
+	 * {@link Stack#MAX_FILES} stackids, so the stackids are no longer
+	 * contiguous. Default: 1, a single open stack.
+	 */
+	public StackerConfig setAppendStripes(int appendStripes) {
+		this.appendStripes = appendStripes;
+		return this;
+	}
+
+	public boolean isWriteAheadLog() {
+		return writeAheadLog;
+	}
+
+	/**
+	 * Record every append, replace and delete in a log next to the stacks,
+	 * {@link Stacker#LOG_FILE}, forced to the disk before addFile and
+	 * deleteFile return. Concurrent calls share the same fsync. The changes
+	 * not yet written to the stacks by {@link Stacker#optimize()} are redone
+	 * by {@link Stacker#loadStacker(String, StackerConfig)} after a crash.
+	 */
+	public StackerConfig setWriteAheadLog(boolean writeAheadLog) {
+		this.writeAheadLog = writeAheadLog;
+		return this;
+	}
+
+	/**
+	 * @return the durability set, or by default PER_BATCH with the
+	 *         write-ahead log and NONE without it
+	 */
+	public Durability getDurability() {
+		if (durability != null) { return durability; }
+		return writeAheadLog ? Durability.PER_BATCH : Durability.NONE;
+	}
+
+	/**
+	 * When addFile, addFiles and deleteFile force their writes to the disk
+	 * (see {@link Stacker#sync()}): the write-ahead log, if there is one, or
+	 * else the data, headers and delete status of the stacks.
+	 */
+	public StackerConfig setDurability(Durability durability) {
+		this.durability = durability;
+		return this;
+	}
+
+	public long getSyncInterval() {
+		return syncInterval;
+	}
+
+	/**
+	 * With {@link Durability#PERIODIC}, the most milliseconds between two
+	 * syncs (as long as something is written). Default: 1000.
+	 */
+	public StackerConfig setSyncInterval(long syncInterval) {
+		this.syncInterval = syncInterval;
+		return this;
+	}
+
+	public long getSyncBytes() {
+		return syncBytes;
+	}
+
+	/**
+	 * With {@link Durability#PERIODIC}, the most bytes written between two
+	 * syncs. Default: 4MB.
+	 */
+	public StackerConfig setSyncBytes(long syncBytes) {
+		this.syncBytes = syncBytes;
+		return this;
+	}
+
+	public int getWriteQueue() {
+		return writeQueue;
+	}
+
+	/**
+	 * Capacity of the queue of {@link Stacker#addFileAsync(String, byte[])}:
+	 * with more than 0, the files are written in batches by a dedicated
+	 * writer thread, and addFileAsync blocks while the queue is full.
+	 * Default: 0, addFileAsync adds the file before returning.
+	 */
+	public StackerConfig setWriteQueue(int writeQueue) {
+		this.writeQueue = writeQueue;
+		return this;
+	}
+}
@@ -1,7 +1,12 @@
 package org.filestacker.service;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
@@ -25,6 +30,11 @@ public class StackerEntry {
 
 	public final int firstId;
 	public final boolean realLock;
+	/**
+	 * Log das alteracoes desta stack, escrito sob o lock, na mesma ordem
+	 * delas. Pode ser null.
+	 */
+	private WriteAheadLog log = null;
 
 	public StackerEntry(LocalStack stack, boolean threadSafe) {
 		this.stack = stack;
@@ -38,6 +48,14 @@ public class StackerEntry {
 		this(stack, true);
 	}
 
+	/**
+	 * Every append, replace and delete made through this entry is recorded in
+	 * log (not synced: see {@link WriteAheadLog#sync()}).
+	 */
+	public void setLog(WriteAheadLog log) {
+		this.log = log;
+	}
+
 	public int getLastId() {
 		return firstId + stack.nextPosition - 1;
 	}
@@ -50,8 +68,53 @@ public class StackerEntry {
 		return stack.numFiles;
 	}
 
+	public long getUpdateTime() {
+		return stack.updateTime;
+	}
+
 	public void writeStack() throws IOException {
-		stack.writeStack();
+		try {
+			lock.lock();
+			stack.writeStack();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * See {@link LocalStack#sync()}.
+	 */
+	public void sync() throws IOException {
+		try {
+			lock.lock();
+			stack.sync();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Under the lock of the entry, takes the stack file channel with writes
+	 * not yet forced, so it can be forced without any lock.
+	 * 
+	 * @return the channel, or null if there is nothing to force
+	 */
+	public FileChannel takeUnsynced() throws IOException {
+		try {
+			lock.lock();
+			return stack.takeUnsynced();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public boolean hasPendingAppends() {
+		try {
+			lock.lock();
+			return stack.hasPendingAppends();
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	public byte[] get(int stackid) throws IOException {
@@ -68,7 +131,79 @@ public class StackerEntry {
 		}
 	}
 
-	public byte[][] getNamespace() throws IOException {
+	/**
+	 * Like {@link #get(int)}, but without taking the entry lock: the lock is
+	 * only used if the header must be (re)loaded.
+	 */
+	public byte[] read(int stackid) throws IOException {
+		if (stack.offsets == null) {
+			loadHeader();
+		}
+		return stack.read(stackid - firstId);
+	}
+
+	public CompletableFuture<byte[]> readAsync(int stackid) throws IOException {
+		if (stack.offsets == null) {
+			loadHeader();
+		}
+		return stack.readAsync(stackid - firstId);
+	}
+
+	/**
+	 * Multi-get, see {@link LocalStack#read(int[])}.
+	 * 
+	 * @param stackids
+	 *            sorted stackids of this entry
+	 */
+	public byte[][] read(int[] stackids) throws IOException {
+		if (stack.offsets == null) {
+			loadHeader();
+		}
+
+		int[] positions = new int[stackids.length];
+		for (int i = 0; i < stackids.length; i++) {
+			positions[i] = stackids[i] - firstId;
+		}
+		return stack.read(positions);
+	}
+
+	public int read(int stackid, ByteBuffer dst) throws IOException {
+		if (stack.offsets == null) {
+			loadHeader();
+		}
+		return stack.read(stackid - firstId, dst);
+	}
+
+	public long transferTo(int stackid, WritableByteChannel target) throws IOException {
+		if (stack.offsets == null) {
+			loadHeader();
+		}
+		return stack.transferTo(stackid - firstId, target);
+	}
+
+	public InputStream openStream(int stackid) throws IOException {
+		if (stack.offsets == null) {
+			loadHeader();
+		}
+		return stack.openStream(stackid - firstId);
+	}
+
+	private void loadHeader() throws IOException {
+		try {
+			lock.lock();
+			if (stack.offsets == null) {
+				stack.reloadHeader();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the hashed names of the stack, 16 bytes each, one after the
+	 *         other (only the first getNextId() - firstId are valid)
+	 */
+	public byte[] getNamespace() throws IOException {
 		try {
 			lock.lock();
 			if (stack.hashedNames == null) {
@@ -82,6 +217,78 @@ public class StackerEntry {
 		}
 	}
 
+	/**
+	 * @return the hashed (MD5) name of stackid
+	 */
+	public byte[] getHashedName(int stackid) throws IOException {
+		try {
+			lock.lock();
+			if (stack.hashedNames == null) {
+				stack.reloadHeader();
+			}
+			return stack.getHashedName(stackid - firstId);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Looks up a hashed name in this stack only, see
+	 * {@link LocalStack#find(byte[])}.
+	 * 
+	 * @return the stackid, or -1 if the name is not in this stack
+	 */
+	public int find(byte[] hashedName) throws IOException {
+		try {
+			lock.lock();
+			if (stack.hashedNames == null) {
+				stack.reloadHeader();
+			}
+			int position = stack.find(hashedName);
+			return position < 0 ? -1 : firstId + position;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Bloom filter test, see {@link LocalStack#mightContain(byte[])}.
+	 * 
+	 * @return false if the name is surely not in this stack
+	 */
+	public boolean mightContain(byte[] hashedName) throws IOException {
+		try {
+			lock.lock();
+			return stack.mightContain(hashedName);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public boolean isHeaderLoaded() {
+		return stack.isHeaderLoaded();
+	}
+
+	/**
+	 * Last access to the offsets of the stack, in System.nanoTime().
+	 */
+	public long getLastAccess() {
+		return stack.getLastAccess();
+	}
+
+	/**
+	 * Drops the offsets and names of a sealed stack, see
+	 * {@link LocalStack#unloadHeader()}.
+	 */
+	public boolean unloadHeader() {
+		try {
+			lock.lock();
+			return stack.unloadHeader();
+		} finally {
+			lock.unlock();
+		}
+	}
+
 	public void freeNamespace() {
 		try {
 			lock.lock();
@@ -93,15 +300,18 @@ public class StackerEntry {
 		}
 	}
 
-	public int getLength(int stackid) {
+	public int getLength(int stackid) throws IOException {
 		int position = stackid - stack.firstStackId;
-		return stack.offsets[position + 1] - stack.offsets[position];
+		int[] index = stack.index();
+		return index[position + 1] - index[position];
 	}
 
 	public List<StackFreeSlot> getDeleteds() throws IOException {
 		try {
 			lock.lock();
-			if (stack.statusFiles == null) {
+			// Sem deletados, os offsets nao sao necessarios
+			if (stack.statusFiles == null
+					|| (stack.offsets == null && stack.numFiles < stack.nextPosition)) {
 				stack.reloadHeader();
 			}
 
@@ -127,6 +337,9 @@ public class StackerEntry {
 
 			int position = stackid - stack.firstStackId;
 			if (stack.delete(position)) {
+				if (log != null) {
+					log.logDelete(firstId, position);
+				}
 				return getDeletedSlot(position);
 			} else {
 				return null;
@@ -158,13 +371,23 @@ public class StackerEntry {
 		}
 	}
 
-	public boolean append(String filename, byte[] filedata) throws IOException {
+	/**
+	 * @param hashedName
+	 *            the name hashed with the NameHasher of the stack
+	 */
+	public boolean append(byte[] hashedName, byte[] filedata) throws IOException {
 		try {
 			lock.lock();
 			if (stack.offsets == null) {
 				stack.reloadHeader();
 			}
-			return stack.append(filename, filedata);
+			if (!stack.append(hashedName, filedata)) {
+				return false;
+			}
+			if (log != null) {
+				log.logAppend(firstId, stack.nextPosition - 1, hashedName, filedata);
+			}
+			return true;
 		} catch (IOException e) {
 			throw e;
 		} finally {
@@ -173,10 +396,44 @@ public class StackerEntry {
 	}
 
 	public boolean close() {
-		return stack.close();
+		try {
+			lock.lock();
+			return stack.close();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Like {@link #append(byte[], byte[])}, but returns the stackid given to
+	 * the file, read under the same lock (other threads may be appending to
+	 * this stack too).
+	 * 
+	 * @return the stackid, or -1 if the stack is full
+	 */
+	public int appendFile(byte[] hashedName, byte[] filedata) throws IOException {
+		try {
+			lock.lock();
+			if (stack.offsets == null) {
+				stack.reloadHeader();
+			}
+			if (!stack.append(hashedName, filedata)) { 
+				return -1; 
+			}
+			if (log != null) {
+				log.logAppend(firstId, stack.nextPosition - 1, hashedName, filedata);
+			}
+			return firstId + stack.nextPosition - 1;
+		} finally {
+			lock.unlock();
+		}
 	}
 
-	public boolean replace(int position, String filename, byte[] filedata)
+	public boolean isSealed() {
+		return stack.isSealed();
+	}
+
+	public boolean replace(int position, byte[] hashedName, byte[] filedata)
 			throws IOException {
 		try {
 			lock.lock();
@@ -184,7 +441,13 @@ public class StackerEntry {
 					|| stack.hashedNames == null) {
 				stack.reloadHeader();
 			}
-			return stack.replace(position, filename, filedata);
+			if (!stack.replace(position, hashedName, filedata)) {
+				return false;
+			}
+			if (log != null) {
+				log.logReplace(firstId, position, hashedName, filedata);
+			}
+			return true;
 		} catch (IOException e) {
 			throw e;
 		} finally {
@@ -0,0 +1,266 @@
+package org.filestacker.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+import org.filestacker.utils.StackUtils;
+
+/**
+ * Fills a {@link Stacker} with the files of a directory, recursively. Each
+ * file is added under its path relative to the directory, with '/' as the
+ * separator.
+ *
+ * The files are read, hashed and compressed (if the Stacker compresses) by a
+ * pool of reader threads, and appended in batches by the calling thread, the
+ * only writer. A bounded queue between them keeps the readers from getting
+ * too far ahead of the writer.
+ *
+ * @author daniel
+ */
+public class StackerImporter {
+
+	private static final Logger logger = Logger.getLogger(StackerImporter.class);
+
+	public static final int DEFAULT_BATCH_SIZE = 256;
+
+	private final Stacker stacker;
+	private final int readers;
+	private int batchSize = DEFAULT_BATCH_SIZE;
+
+	public StackerImporter(final Stacker stacker) {
+		this(stacker, Runtime.getRuntime().availableProcessors());
+	}
+
+	public StackerImporter(final Stacker stacker, int readers) {
+		if (readers < 1) {
+			throw new IllegalArgumentException("readers should be positive");
+		}
+		this.stacker = stacker;
+		this.readers = readers;
+	}
+
+	/**
+	 * How many files are appended with each acquisition of the Stacker lock.
+	 */
+	public StackerImporter setBatchSize(int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("batchSize should be positive");
+		}
+		this.batchSize = batchSize;
+		return this;
+	}
+
+	/**
+	 * Um arquivo lido pelos leitores, pronto para o addPrepared. data == null
+	 * se a leitura falhou.
+	 */
+	private static class ReadFile {
+		final String name;
+		final byte[] hashedName;
+		final byte[] data;
+		final long size;
+
+		ReadFile(String name, byte[] hashedName, byte[] data, long size) {
+			this.name = name;
+			this.hashedName = hashedName;
+			this.data = data;
+			this.size = size;
+		}
+	}
+
+	/**
+	 * Adds every file under directory and then {@link Stacker#optimize()}s
+	 * the Stacker, so all of them can be read when this returns. A file that
+	 * cannot be read or added, or is larger than {@link Stack#MAX_FILE_SIZE},
+	 * is logged and counted as failed.
+	 */
+	public Report importDirectory(final File directory) throws IOException {
+		final long start = System.currentTimeMillis();
+		final Path root = directory.getAbsoluteFile().toPath();
+		List<File> files = StackUtils.listFilesRecursive(directory);
+
+		final BlockingQueue<ReadFile> queue = new ArrayBlockingQueue<ReadFile>(batchSize * 4);
+		ExecutorService pool = Executors.newFixedThreadPool(readers);
+		int imported = 0;
+		int failed = 0;
+		long bytes = 0;
+		try {
+			for (final File file : files) {
+				pool.execute(new Runnable() {
+					@Override
+					public void run() {
+						String name = root.relativize(file.getAbsoluteFile().toPath()).toString()
+								.replace(File.separatorChar, '/');
+						try {
+							queue.put(read(name, file));
+						} catch (InterruptedException ie) {
+							// importDirectory desistiu
+							Thread.currentThread().interrupt();
+						}
+					}
+				});
+			}
+
+			// O writer: junta os arquivos lidos em lotes, na ordem em que
+			// ficaram prontos
+			byte[][] hashes = new byte[batchSize][];
+			String[] names = new String[batchSize];
+			byte[][] data = new byte[batchSize][];
+			long[] sizes = new long[batchSize];
+			int batched = 0;
+			for (int remaining = files.size(); remaining > 0; remaining--) {
+				ReadFile file = queue.take();
+				if (file.data == null) {
+					failed++;
+				} else {
+					hashes[batched] = file.hashedName;
+					names[batched] = file.name;
+					sizes[batched] = file.size;
+					data[batched++] = file.data;
+				}
+
+				if (batched == batchSize || (remaining == 1 && batched > 0)) {
+					if (batched < batchSize) {
+						hashes = Arrays.copyOf(hashes, batched);
+						names = Arrays.copyOf(names, batched);
+						data = Arrays.copyOf(data, batched);
+					}
+					int[] ids = stacker.addPrepared(hashes, names, data);
+					for (int i = 0; i < ids.length; i++) {
+						if (ids[i] < 0) {
+							failed++;
+						} else {
+							imported++;
+							bytes += sizes[i];
+						}
+					}
+					batched = 0;
+				}
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("import of " + directory + " interrupted");
+		} finally {
+			pool.shutdownNow();
+		}
+
+		stacker.optimize();
+		Report report = new Report(imported, failed, bytes, System.currentTimeMillis() - start);
+		logger.info("Importado " + directory + ": " + report);
+		return report;
+	}
+
+	private ReadFile read(String name, File file) {
+		ReadFile failed = new ReadFile(name, null, null, 0);
+		try {
+			// Nem le: nao cabe em stack nenhuma
+			if (!stacker.useCompression && file.length() > Stack.MAX_FILE_SIZE) {
+				logger.warn("Arquivo " + file + " maior que " + Stack.MAX_FILE_SIZE + " bytes");
+				return failed;
+			}
+
+			byte[] data = FileUtils.readFileToByteArray(file);
+			long size = data.length;
+			if (stacker.useCompression) {
+				data = StackUtils.compress(data);
+			}
+			if (data.length > Stack.MAX_FILE_SIZE) {
+				logger.warn("Arquivo " + file + " maior que " + Stack.MAX_FILE_SIZE + " bytes");
+				return failed;
+			}
+			return new ReadFile(name, stacker.hasher.hash(name), data, size);
+		} catch (Throwable t) {
+			// Sempre devolve algo, ate num Error (OOM de um arquivo enorme): o
+			// writer espera um item por arquivo
+			logger.warn("Nao foi possivel ler " + file, t);
+			return failed;
+		}
+	}
+
+	/**
+	 * Counts and throughput of an import.
+	 */
+	public static class Report {
+		private final int files;
+		private final int failed;
+		private final long bytes;
+		private final long millis;
+
+		Report(int files, int failed, long bytes, long millis) {
+			this.files = files;
+			this.failed = failed;
+			this.bytes = bytes;
+			this.millis = millis;
+		}
+
+		/**
+		 * @return how many files were added
+		 */
+		public int getFiles() {
+			return files;
+		}
+
+		/**
+		 * @return how many files could not be read or added
+		 */
+		public int getFailed() {
+			return failed;
+		}
+
+		/**
+		 * @return total size of the added files, before compression
+		 */
+		public long getBytes() {
+			return bytes;
+		}
+
+		public long getMillis() {
+			return millis;
+		}
+
+		public double getFilesPerSecond() {
+			return files * 1000.0 / Math.max(1, millis);
+		}
+
+		public double getMegabytesPerSecond() {
+			return bytes * 1000.0 / (1024 * 1024) / Math.max(1, millis);
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d files (%d failed), %d bytes in %d ms: %.2f files/s, %.2f MB/s", files,
+					failed, bytes, millis, getFilesPerSecond(), getMegabytesPerSecond());
+		}
+	}
+
+	/**
+	 * Imports a directory into a new Stacker:
+	 * <code>StackerImporter directory stacksPath [readers]</code>
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("usage: StackerImporter directory stacksPath [readers]");
+			System.exit(1);
+		}
+
+		Stacker stacker = new Stacker(args[1]);
+		try {
+			StackerImporter importer = (args.length > 2)
+					? new StackerImporter(stacker, Integer.parseInt(args[2]))
+					: new StackerImporter(stacker);
+			System.out.println(importer.importDirectory(new File(args[0])));
+		} finally {
+			stacker.close();
+		}
+	}
+}
@@ -27,11 +27,23 @@ public class TextStacker extends Stacker {
 	public TextStacker(String path, boolean threadSafe) {
 		super(path, threadSafe, ALWAYS_COMPRESS);
 	}
+
+	/**
+	 * Note: compression is always turned on, in a copy of the given config
+	 * (the config itself is not changed).
+	 */
+	public TextStacker(String path, StackerConfig config) {
+		super(path, config.copy().setCompression(ALWAYS_COMPRESS));
+	}
 	
 	private TextStacker(final String path, final LocalStack[] stacks, boolean threadSafe) throws IOException {
 		super(path, stacks, threadSafe, ALWAYS_COMPRESS);
 	}
 
+	private TextStacker(final String path, final LocalStack[] stacks, StackerConfig config) throws IOException {
+		super(path, stacks, config.copy().setCompression(ALWAYS_COMPRESS));
+	}
+
 	public static TextStacker loadStacker(final String path)  throws IOException {
 		return TextStacker.loadStacker(path, DEFAULT_SINGLEMODE);
 	}
@@ -39,6 +51,10 @@ public class TextStacker extends Stacker {
 	public static TextStacker loadStacker(final String path, boolean threadSafe)  throws IOException {
 		return new TextStacker(path, stacks(path), threadSafe);
 	}
+
+	public static TextStacker loadStacker(final String path, StackerConfig config)  throws IOException {
+		return new TextStacker(path, stacks(path, config), config);
+	}
 	
 	public String searchText(int stackid) throws IOException {
 		return new String(searchFile(stackid));
@@ -0,0 +1,369 @@
+package org.filestacker.service;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+import org.filestacker.utils.NameHasher;
+
+/**
+ * Append-only log of the changes made to the stacks of a Stacker (appends,
+ * replaces and deletes), so the ones not yet written to the stack files by
+ * {@link Stacker#optimize()} survive a crash.
+ *
+ * Each record names the stack (by its first id) and the position it changed,
+ * so {@link #replay(File, LocalStack[], String, NameHasher)} can be run over
+ * stacks that already have some of the changes: an append to a position the
+ * stack already has is skipped, replaces and deletes are simply done again.
+ *
+ * Records are written without fsync; {@link #sync()} forces them to the disk,
+ * and threads calling it at the same time share a single fsync (group
+ * commit).
+ *
+ * The records are written after the change is made to the stack, so a
+ * record that cannot be written does not undo the change: the error is kept,
+ * every later record is dropped and {@link #sync()} and
+ * {@link #checkpoint(long)} throw it, until the log is opened again.
+ *
+ * @author daniel
+ */
+public class WriteAheadLog {
+
+	private static final Logger logger = Logger.getLogger(WriteAheadLog.class);
+
+	private static final int MAGIC = 0x4653574C; // FSWL
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 8;
+
+	// RECORD: LENGTH - TYPE - FIRSTID - POSITION - [HASHEDNAME - DATA] - CRC32
+	// (LENGTH e CRC32 somente do trecho entre eles)
+	private static final byte APPEND = 1;
+	private static final byte REPLACE = 2;
+	private static final byte DELETE = 3;
+	private static final int BODY_SIZE = 9;
+
+	private final File file;
+	private FileChannel channel;
+	/**
+	 * Fim do log no arquivo.
+	 */
+	private long end;
+	/**
+	 * Bytes escritos desde a abertura (nunca diminui, nem no checkpoint).
+	 */
+	private long written = 0;
+	/**
+	 * Ate onde de written ja foi para o disco.
+	 */
+	private volatile long synced = 0;
+	private final Object syncLock = new Object();
+	/**
+	 * Primeira falha de escrita: dali em diante o log tem buracos.
+	 */
+	private volatile IOException failure = null;
+
+	/**
+	 * Opens an empty log at file, discarding any previous one: replay it
+	 * before, if needed.
+	 */
+	public WriteAheadLog(File file) throws IOException {
+		this.file = file;
+		channel = create(file);
+		end = HEADER_SIZE;
+	}
+
+	private static FileChannel create(File file) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC).putInt(VERSION);
+		((Buffer) header).flip();
+		writeFully(channel, header, 0);
+		channel.force(false);
+		return channel;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public void logAppend(int firstId, int position, byte[] hashedName, byte[] filedata) {
+		write(APPEND, firstId, position, hashedName, filedata);
+	}
+
+	public void logReplace(int firstId, int position, byte[] hashedName, byte[] filedata) {
+		write(REPLACE, firstId, position, hashedName, filedata);
+	}
+
+	public void logDelete(int firstId, int position) {
+		write(DELETE, firstId, position, null, null);
+	}
+
+	/**
+	 * @return the error that stopped the log, or null
+	 */
+	public IOException getFailure() {
+		return failure;
+	}
+
+	private synchronized void write(byte type, int firstId, int position, byte[] hashedName, byte[] filedata) {
+		if (failure != null) { return; }
+
+		int length = BODY_SIZE + (hashedName == null ? 0 : Stack.HASHEDNAME_SIZE + filedata.length);
+		ByteBuffer record = ByteBuffer.allocate(4 + length + 4);
+		record.putInt(length);
+		record.put(type);
+		record.putInt(firstId);
+		record.putInt(position);
+		if (hashedName != null) {
+			record.put(hashedName, 0, Stack.HASHEDNAME_SIZE);
+			record.put(filedata);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), 4, length);
+		record.putInt((int) crc.getValue());
+		((Buffer) record).flip();
+
+		try {
+			writeFully(channel, record, end);
+		} catch (IOException ioe) {
+			// A alteracao ja esta na stack: quem espera o sync fica sabendo
+			logger.error("Nao foi possivel gravar em " + file + ", log parado", ioe);
+			failure = ioe;
+			return;
+		}
+		end += record.limit();
+		written += record.limit();
+	}
+
+	private void checkFailure() throws IOException {
+		if (failure != null) {
+			throw new IOException("write-ahead log " + file + " stopped", failure);
+		}
+	}
+
+	/**
+	 * Forces every record written so far to the disk. If another thread is
+	 * already doing it, waits for it and only forces again if its own records
+	 * were left out.
+	 */
+	public void sync() throws IOException {
+		checkFailure();
+		long target;
+		synchronized (this) {
+			target = written;
+		}
+		if (synced >= target) { return; }
+
+		synchronized (syncLock) {
+			// O fsync de outra thread pode ja ter levado os nossos registros
+			if (synced >= target) { return; }
+
+			FileChannel current;
+			synchronized (this) {
+				target = written;
+				current = channel;
+			}
+			try {
+				current.force(false);
+			} catch (ClosedChannelException e) {
+				// Trocado por um checkpoint, que ja forcou tudo
+				if (synced < target) { throw e; }
+				return;
+			}
+			synced = Math.max(synced, target);
+		}
+	}
+
+	/**
+	 * @return the current end of the log, for {@link #checkpoint(long)}
+	 */
+	public synchronized long mark() {
+		return end;
+	}
+
+	/**
+	 * Drops the records before mark, whose changes must already be in the
+	 * (forced) stack files. The records written after mark, by appends that
+	 * ran during the checkpoint, are kept.
+	 */
+	public synchronized void checkpoint(long mark) throws IOException {
+		checkFailure();
+		ByteBuffer rest = ByteBuffer.allocate((int) (end - mark));
+		while (rest.hasRemaining()) {
+			if (channel.read(rest, mark + rest.position()) < 0) {
+				throw new EOFException("log " + file + " ended before " + end);
+			}
+		}
+		((Buffer) rest).flip();
+
+		// Um log novo, trocado de uma vez: ate o rename, vale o antigo (que
+		// tambem tem tudo)
+		File next = new File(file.getPath() + ".new");
+		FileChannel fresh = create(next);
+		writeFully(fresh, rest, HEADER_SIZE);
+		fresh.force(false);
+		Files.move(next.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+
+		synced = written;
+		channel.close();
+		channel = fresh;
+		end = HEADER_SIZE + rest.limit();
+	}
+
+	public synchronized void close() throws IOException {
+		channel.close();
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+
+	/**
+	 * Redoes the changes in the log file (if it exists) over the stacks, and
+	 * writes and forces the stacks it changed. A torn record at the end, from
+	 * a crash in the middle of a write, ends the replay.
+	 *
+	 * @param hasher
+	 *            name hash of the stacks created by the replay
+	 * @return the stacks, including the ones created by the log, ordered by
+	 *         first id
+	 */
+	public static LocalStack[] replay(File file, LocalStack[] stacks, String path, NameHasher hasher)
+			throws IOException {
+		if (!file.exists()) { return stacks; }
+
+		Map<Integer, LocalStack> byFirstId = new HashMap<Integer, LocalStack>();
+		for (LocalStack stack : stacks) {
+			byFirstId.put(stack.getFirstId(), stack);
+		}
+		Set<LocalStack> changed = new LinkedHashSet<LocalStack>();
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		int records = 0;
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException("invalid write-ahead log " + file);
+			}
+
+			while (true) {
+				byte[] body = readRecord(in);
+				if (body == null) {
+					break;
+				}
+				ByteBuffer record = ByteBuffer.wrap(body);
+				byte type = record.get();
+				int firstId = record.getInt();
+				int position = record.getInt();
+				byte[] hashedName = null;
+				byte[] filedata = null;
+				if (type != DELETE) {
+					hashedName = new byte[Stack.HASHEDNAME_SIZE];
+					record.get(hashedName);
+					filedata = new byte[record.remaining()];
+					record.get(filedata);
+				}
+
+				LocalStack stack = byFirstId.get(firstId);
+				if (stack == null && type == APPEND && position == 0) {
+					stack = new LocalStack(firstId, path);
+					stack.setNameHasher(hasher);
+					byFirstId.put(firstId, stack);
+				}
+				if (stack == null || position > stack.nextPosition
+						|| (type != APPEND && position == stack.nextPosition)) {
+					logger.warn("Registro de " + file + " sem a posicao " + position + " na stack " + firstId
+							+ ", ignorado");
+					continue;
+				}
+
+				if (type == APPEND) {
+					// Ja esta na stack
+					if (position < stack.nextPosition) {
+						continue;
+					}
+					if (!stack.append(hashedName, filedata)) {
+						throw new IOException("could not replay append " + (firstId + position) + " from " + file);
+					}
+				} else if (type == REPLACE) {
+					stack.getIndex();
+					stack.replace(position, hashedName, filedata);
+				} else {
+					stack.delete(position);
+				}
+				changed.add(stack);
+				records++;
+			}
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+
+		for (LocalStack stack : changed) {
+			stack.writeStack();
+			stack.sync();
+		}
+		if (records > 0) {
+			logger.info("Refeitas " + records + " alteracoes de " + file + " em " + changed.size() + " stacks");
+		}
+
+		List<LocalStack> all = new ArrayList<LocalStack>(byFirstId.values());
+		Collections.sort(all, new Comparator<LocalStack>() {
+			@Override
+			public int compare(LocalStack a, LocalStack b) {
+				return Integer.compare(a.getFirstId(), b.getFirstId());
+			}
+		});
+		return all.toArray(new LocalStack[all.size()]);
+	}
+
+	/**
+	 * @return the body of the next record, or null at the end of the log or
+	 *         at a torn record
+	 */
+	private static byte[] readRecord(DataInputStream in) throws IOException {
+		try {
+			int length = in.readInt();
+			if (length < BODY_SIZE || length > BODY_SIZE + Stack.HASHEDNAME_SIZE + Stack.MAX_SIZE) {
+				logger.warn("Registro com tamanho invalido " + length + ", fim do log");
+				return null;
+			}
+			byte[] body = new byte[length];
+			in.readFully(body);
+			int expected = in.readInt();
+
+			CRC32 crc = new CRC32();
+			crc.update(body, 0, length);
+			if ((int) crc.getValue() != expected) {
+				logger.warn("Registro com CRC invalido, fim do log");
+				return null;
+			}
+			return body;
+		} catch (EOFException eof) {
+			return null;
+		}
+	}
+}
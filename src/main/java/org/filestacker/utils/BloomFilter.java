@@ -0,0 +1,110 @@
+package org.filestacker.utils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Bloom filter over 128-bit hashed names (see {@link NameIndex}). Never gives
+ * a false negative; with 10 bits per name, about 1% of the names that were
+ * never added are reported as present.
+ *
+ * The k bit positions come from the two halves of the hash (double hashing),
+ * so no other hash function is computed. Names cannot be removed.
+ *
+ * Not thread-safe.
+ *
+ * @author daniel
+ */
+public class BloomFilter {
+
+	public static final int DEFAULT_BITS_PER_NAME = 10;
+	private static final int MAX_HASHES = 16;
+
+	private final long[] bits;
+	private final long numBits;
+	private final int hashes;
+
+	public BloomFilter(int expectedNames) {
+		this(expectedNames, DEFAULT_BITS_PER_NAME);
+	}
+
+	public BloomFilter(int expectedNames, int bitsPerName) {
+		if (bitsPerName <= 0) {
+			throw new IllegalArgumentException("bitsPerName should be positive");
+		}
+		long words = ((long) Math.max(1, expectedNames) * bitsPerName + 63) / 64;
+		bits = new long[(int) words];
+		numBits = words * 64;
+		// k otimo: bitsPerName * ln(2)
+		hashes = Math.max(1, Math.min(MAX_HASHES, (int) Math.round(bitsPerName * Math.log(2))));
+	}
+
+	private BloomFilter(long[] bits, int hashes) {
+		this.bits = bits;
+		this.numBits = (long) bits.length * 64;
+		this.hashes = hashes;
+	}
+
+	public void add(byte[] hash) {
+		add(hash, 0);
+	}
+
+	public void add(byte[] hash, int offset) {
+		long h1 = NameIndex.high(hash, offset);
+		long h2 = NameIndex.low(hash, offset);
+		for (int i = 0; i < hashes; i++) {
+			long bit = ((h1 + i * h2) & Long.MAX_VALUE) % numBits;
+			bits[(int) (bit >>> 6)] |= 1L << bit;
+		}
+	}
+
+	public boolean mightContain(byte[] hash) {
+		return mightContain(hash, 0);
+	}
+
+	/**
+	 * @return false if the name was surely never added
+	 */
+	public boolean mightContain(byte[] hash, int offset) {
+		long h1 = NameIndex.high(hash, offset);
+		long h2 = NameIndex.low(hash, offset);
+		for (int i = 0; i < hashes; i++) {
+			long bit = ((h1 + i * h2) & Long.MAX_VALUE) % numBits;
+			if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) { return false; }
+		}
+		return true;
+	}
+
+	/**
+	 * @return size of the bit array, in bytes
+	 */
+	public int sizeInBytes() {
+		return bits.length * 8;
+	}
+
+	public void writeTo(DataOutput out) throws IOException {
+		out.writeInt(hashes);
+		out.writeInt(bits.length);
+		for (long word : bits) {
+			out.writeLong(word);
+		}
+	}
+
+	/**
+	 * Le um filtro gravado por {@link #writeTo(DataOutput)}.
+	 */
+	public static BloomFilter readFrom(DataInput in) throws IOException {
+		int hashes = in.readInt();
+		int words = in.readInt();
+		if (hashes < 1 || hashes > MAX_HASHES || words < 1) {
+			throw new IOException("invalid bloom filter: " + hashes + " hashes, " + words + " words");
+		}
+
+		long[] bits = new long[words];
+		for (int i = 0; i < words; i++) {
+			bits[i] = in.readLong();
+		}
+		return new BloomFilter(bits, hashes);
+	}
+}
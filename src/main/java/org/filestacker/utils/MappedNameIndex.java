@@ -0,0 +1,196 @@
+package org.filestacker.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * {@link NameIndex} whose table lives in a memory-mapped file instead of the
+ * Java heap, so it can be reopened without being rebuilt.
+ *
+ * Every put/remove goes straight to the mapping. The file has a clean flag,
+ * cleared before the first change and set again by {@link #close(long)},
+ * together with a fingerprint given by the owner (e.g. of the stacks the
+ * names point to). An index that was not closed, or whose fingerprint does
+ * not match, must be cleared and rebuilt: see {@link #isValid(long)}.
+ *
+ * Up to 2^26 slots (about 50 million names), since the whole table is a
+ * single mapping.
+ *
+ * @author daniel
+ */
+public class MappedNameIndex extends NameIndex {
+
+	private static final int MAGIC = 0x46534E49; // FSNI
+	private static final int VERSION = 1;
+
+	// HEADER: MAGIC - VERSION - CAPACITY - SIZE - CLEAN - FINGERPRINT
+	private static final int CAPACITY_OFFSET = 8;
+	private static final int SIZE_OFFSET = 12;
+	private static final int CLEAN_OFFSET = 16;
+	private static final int FINGERPRINT_OFFSET = 20;
+	private static final int HEADER_SIZE = 64;
+
+	// SLOT: HIGH - LOW - VALUE+1 (0 marca uma posicao livre)
+	private static final int SLOT_SIZE = 20;
+	private static final int MAX_CAPACITY = 1 << 26;
+
+	private final File file;
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	private MappedByteBuffer map;
+	private int capacity;
+	private boolean clean;
+	private long fingerprint;
+
+	/**
+	 * Opens the index file, creating it if it does not exist (or is not a
+	 * valid index file).
+	 */
+	public MappedNameIndex(File file) throws IOException {
+		super(false);
+		this.file = file;
+		raf = new RandomAccessFile(file, "rw");
+		channel = raf.getChannel();
+
+		if (!restore()) {
+			clean = false;
+			fingerprint = 0;
+			allocate(tableSizeFor(DEFAULT_CAPACITY));
+			restored(0);
+		}
+	}
+
+	private boolean restore() throws IOException {
+		if (channel.size() < HEADER_SIZE) { return false; }
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		while (header.hasRemaining()) {
+			if (channel.read(header, header.position()) < 0) { return false; }
+		}
+		((Buffer) header).flip();
+
+		int cap = header.getInt(CAPACITY_OFFSET);
+		if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION
+				|| cap < 16 || cap > MAX_CAPACITY || Integer.bitCount(cap) != 1
+				|| channel.size() < HEADER_SIZE + (long) cap * SLOT_SIZE) {
+			return false;
+		}
+
+		map(cap);
+		clean = header.getInt(CLEAN_OFFSET) == 1;
+		fingerprint = header.getLong(FINGERPRINT_OFFSET);
+		restored(header.getInt(SIZE_OFFSET));
+		return true;
+	}
+
+	private void map(int cap) throws IOException {
+		map = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) cap * SLOT_SIZE);
+		capacity = cap;
+	}
+
+	/**
+	 * @return true if the index was closed with this fingerprint and not
+	 *         changed since
+	 */
+	public boolean isValid(long fingerprint) {
+		return clean && this.fingerprint == fingerprint;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	@Override
+	protected void allocate(int cap) {
+		if (cap > MAX_CAPACITY) {
+			throw new IllegalStateException("name index full: " + size + " names");
+		}
+
+		try {
+			raf.setLength(HEADER_SIZE + (long) cap * SLOT_SIZE);
+			map(cap);
+		} catch (IOException ioe) {
+			throw new UncheckedIOException("could not grow " + file, ioe);
+		}
+
+		// A area reaproveitada do arquivo antigo precisa ser zerada
+		for (int i = HEADER_SIZE; i < HEADER_SIZE + cap * SLOT_SIZE; i += 4) {
+			map.putInt(i, 0);
+		}
+		map.putInt(0, MAGIC);
+		map.putInt(4, VERSION);
+		map.putInt(CAPACITY_OFFSET, cap);
+		mask = cap - 1;
+	}
+
+	@Override
+	protected int capacity() {
+		return capacity;
+	}
+
+	@Override
+	protected long highAt(int slot) {
+		return map.getLong(HEADER_SIZE + slot * SLOT_SIZE);
+	}
+
+	@Override
+	protected long lowAt(int slot) {
+		return map.getLong(HEADER_SIZE + slot * SLOT_SIZE + 8);
+	}
+
+	@Override
+	protected int valueAt(int slot) {
+		return map.getInt(HEADER_SIZE + slot * SLOT_SIZE + 16) - 1;
+	}
+
+	@Override
+	protected void setAt(int slot, long high, long low, int value) {
+		int offset = HEADER_SIZE + slot * SLOT_SIZE;
+		map.putLong(offset, high);
+		map.putLong(offset + 8, low);
+		map.putInt(offset + 16, value + 1);
+	}
+
+	@Override
+	protected void setValueAt(int slot, int value) {
+		map.putInt(HEADER_SIZE + slot * SLOT_SIZE + 16, value + 1);
+	}
+
+	/**
+	 * Marca o arquivo como sujo (e garante isso no disco) antes da primeira
+	 * alteracao.
+	 */
+	@Override
+	protected void modified() {
+		if (clean) {
+			clean = false;
+			map.putInt(CLEAN_OFFSET, 0);
+			map.force();
+		}
+	}
+
+	/**
+	 * Flushes the table, marks it clean with the given fingerprint and closes
+	 * the file. The index must not be used afterwards.
+	 */
+	public void close(long fingerprint) throws IOException {
+		if (map == null) { return; }
+
+		map.putInt(SIZE_OFFSET, size);
+		map.putLong(FINGERPRINT_OFFSET, fingerprint);
+		map.force();
+		map.putInt(CLEAN_OFFSET, 1);
+		map.force();
+
+		this.fingerprint = fingerprint;
+		clean = true;
+		map = null;
+		raf.close();
+	}
+}
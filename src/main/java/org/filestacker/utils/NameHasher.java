@@ -0,0 +1,170 @@
+package org.filestacker.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Hash function of the file names: 16 bytes (HASHEDNAME_SIZE) for each name.
+ * The id is recorded in the header of each stack, so a stack is always read
+ * with the hash it was written with.
+ *
+ * @author daniel
+ */
+public enum NameHasher {
+
+	/**
+	 * MD5 of the UTF-8 bytes of the name, the same as
+	 * {@link StackUtils#strToMD5(String)}. Default, and the only one used by
+	 * stacks written before the hash id was recorded (id 0).
+	 */
+	MD5(0) {
+		@Override
+		public byte[] hash(String name) {
+			MessageDigest digest = DIGESTS.get();
+			return digest.digest(name.getBytes(StandardCharsets.UTF_8));
+		}
+	},
+
+	/**
+	 * MurmurHash3 x64 128 bits (seed 0) of the UTF-8 bytes of the name. Not
+	 * cryptographic, several times faster than MD5 for small names.
+	 */
+	MURMUR3_128(1) {
+		@Override
+		public byte[] hash(String name) {
+			return murmur3(name.getBytes(StandardCharsets.UTF_8));
+		}
+	};
+
+	/**
+	 * Um MessageDigest por thread: MessageDigest.getInstance a cada nome
+	 * custa mais que o proprio MD5 de um nome curto.
+	 */
+	private static final ThreadLocal<MessageDigest> DIGESTS = new ThreadLocal<MessageDigest>() {
+		@Override
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException("MD5 not available", e);
+			}
+		}
+	};
+
+	private final int id;
+
+	private NameHasher(int id) {
+		this.id = id;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * @return the 16 bytes hash of the name
+	 */
+	public abstract byte[] hash(String name);
+
+	/**
+	 * @return the hasher with this id, or null if there is none
+	 */
+	public static NameHasher forId(int id) {
+		for (NameHasher hasher : values()) {
+			if (hasher.id == id) { return hasher; }
+		}
+		return null;
+	}
+
+	private static final long C1 = 0x87c37b91114253d5L;
+	private static final long C2 = 0x4cf5ad432745937fL;
+
+	/**
+	 * MurmurHash3_x64_128, com h1 e h2 em little-endian (a mesma ordem de
+	 * bytes das outras implementacoes).
+	 */
+	static byte[] murmur3(byte[] data) {
+		long h1 = 0;
+		long h2 = 0;
+		int length = data.length;
+		int blocks = length / 16;
+
+		for (int i = 0; i < blocks; i++) {
+			long k1 = getLongLE(data, i * 16);
+			long k2 = getLongLE(data, i * 16 + 8);
+
+			h1 ^= mixK1(k1);
+			h1 = Long.rotateLeft(h1, 27);
+			h1 += h2;
+			h1 = h1 * 5 + 0x52dce729;
+
+			h2 ^= mixK2(k2);
+			h2 = Long.rotateLeft(h2, 31);
+			h2 += h1;
+			h2 = h2 * 5 + 0x38495ab5;
+		}
+
+		// Ultimos length % 16 bytes
+		int tail = blocks * 16;
+		long k1 = 0;
+		long k2 = 0;
+		for (int i = length - 1; i >= tail + 8; i--) {
+			k2 = (k2 << 8) | (data[i] & 0xFF);
+		}
+		for (int i = Math.min(length, tail + 8) - 1; i >= tail; i--) {
+			k1 = (k1 << 8) | (data[i] & 0xFF);
+		}
+		if (length - tail > 8) {
+			h2 ^= mixK2(k2);
+		}
+		if (length - tail > 0) {
+			h1 ^= mixK1(k1);
+		}
+
+		h1 ^= length;
+		h2 ^= length;
+		h1 += h2;
+		h2 += h1;
+		h1 = fmix(h1);
+		h2 = fmix(h2);
+		h1 += h2;
+		h2 += h1;
+
+		byte[] hash = new byte[16];
+		for (int i = 0; i < 8; i++) {
+			hash[i] = (byte) (h1 >>> (8 * i));
+			hash[i + 8] = (byte) (h2 >>> (8 * i));
+		}
+		return hash;
+	}
+
+	private static long getLongLE(byte[] b, int offset) {
+		long value = 0;
+		for (int i = 7; i >= 0; i--) {
+			value = (value << 8) | (b[offset + i] & 0xFF);
+		}
+		return value;
+	}
+
+	private static long mixK1(long k1) {
+		k1 *= C1;
+		k1 = Long.rotateLeft(k1, 31);
+		return k1 * C2;
+	}
+
+	private static long mixK2(long k2) {
+		k2 *= C2;
+		k2 = Long.rotateLeft(k2, 33);
+		return k2 * C1;
+	}
+
+	private static long fmix(long k) {
+		k ^= k >>> 33;
+		k *= 0xff51afd7ed558ccdL;
+		k ^= k >>> 33;
+		k *= 0xc4ceb9fe1a85ec53L;
+		k ^= k >>> 33;
+		return k;
+	}
+}
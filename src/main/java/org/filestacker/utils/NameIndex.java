@@ -0,0 +1,293 @@
+package org.filestacker.utils;
+
+import java.util.Arrays;
+
+/**
+ * Hash map from a 128-bit hashed name (the 16 bytes of an MD5, seen as two
+ * longs) to a non-negative int, usually a stackid.
+ *
+ * Open addressing with linear probing over three primitive arrays: about 27
+ * bytes per name at the maximum load factor, with no String, boxed Integer or
+ * entry object. Removal uses backward shifting, so there are no tombstones.
+ *
+ * Not thread-safe. The storage of the table may be replaced by subclasses,
+ * see {@link MappedNameIndex}.
+ *
+ * @author daniel
+ */
+public class NameIndex {
+
+	public static final int NOT_FOUND = -1;
+
+	protected static final int DEFAULT_CAPACITY = 1024;
+	private static final float LOAD_FACTOR = 0.75f;
+
+	private long[] highs;
+	private long[] lows;
+	/**
+	 * NOT_FOUND marca uma posicao livre.
+	 */
+	private int[] values;
+	protected int mask;
+	protected int size = 0;
+	private int threshold;
+
+	public NameIndex() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public NameIndex(int expectedNames) {
+		allocate(tableSizeFor(expectedNames));
+		threshold = (int) (capacity() * LOAD_FACTOR);
+	}
+
+	/**
+	 * Usado pelas subclasses, que alocam a tabela por conta propria.
+	 */
+	protected NameIndex(boolean allocate) {
+		if (allocate) {
+			allocate(tableSizeFor(DEFAULT_CAPACITY));
+			threshold = (int) (capacity() * LOAD_FACTOR);
+		}
+	}
+
+	protected static int tableSizeFor(int names) {
+		int capacity = Integer.highestOneBit(Math.max(16, (int) (names / LOAD_FACTOR)) - 1) << 1;
+		return Math.max(16, capacity);
+	}
+
+	/*
+	 * Armazenamento da tabela: arrays no heap aqui, sobrescrito por
+	 * MappedNameIndex. allocate deve deixar todas as posicoes livres.
+	 */
+
+	protected void allocate(int capacity) {
+		highs = new long[capacity];
+		lows = new long[capacity];
+		values = new int[capacity];
+		Arrays.fill(values, NOT_FOUND);
+		mask = capacity - 1;
+	}
+
+	protected int capacity() {
+		return values.length;
+	}
+
+	protected long highAt(int slot) {
+		return highs[slot];
+	}
+
+	protected long lowAt(int slot) {
+		return lows[slot];
+	}
+
+	protected int valueAt(int slot) {
+		return values[slot];
+	}
+
+	protected void setAt(int slot, long high, long low, int value) {
+		highs[slot] = high;
+		lows[slot] = low;
+		values[slot] = value;
+	}
+
+	protected void setValueAt(int slot, int value) {
+		values[slot] = value;
+	}
+
+	/**
+	 * Chamado antes de qualquer alteracao.
+	 */
+	protected void modified() {
+	}
+
+	/**
+	 * Usado pelas subclasses ao carregar uma tabela ja existente.
+	 */
+	protected void restored(int size) {
+		this.mask = capacity() - 1;
+		this.size = size;
+		this.threshold = (int) (capacity() * LOAD_FACTOR);
+	}
+
+	/**
+	 * Primeiros 8 bytes do hash, big-endian.
+	 */
+	public static long high(byte[] hash, int offset) {
+		return toLong(hash, offset);
+	}
+
+	/**
+	 * Ultimos 8 bytes do hash, big-endian.
+	 */
+	public static long low(byte[] hash, int offset) {
+		return toLong(hash, offset + 8);
+	}
+
+	private static long toLong(byte[] b, int offset) {
+		long value = 0;
+		for (int i = 0; i < 8; i++) {
+			value = (value << 8) | (b[offset + i] & 0xFF);
+		}
+		return value;
+	}
+
+	private int slot(long high, long low) {
+		long h = (high ^ low) * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+
+	public int get(byte[] hash) {
+		return get(hash, 0);
+	}
+
+	public int get(byte[] hash, int offset) {
+		return get(high(hash, offset), low(hash, offset));
+	}
+
+	/**
+	 * Pode ser chamado sem lock durante uma alteracao, desde que o resultado
+	 * seja descartado depois (ver Stacker.nameToId): a busca nunca passa de
+	 * capacity() posicoes, mesmo vendo a tabela pela metade.
+	 * 
+	 * @return the value, or NOT_FOUND
+	 */
+	public int get(long high, long low) {
+		int probes = capacity();
+		for (int i = slot(high, low); probes-- > 0; i = (i + 1) & mask) {
+			int value = valueAt(i);
+			if (value == NOT_FOUND) { return NOT_FOUND; }
+			if (highAt(i) == high && lowAt(i) == low) { return value; }
+		}
+		return NOT_FOUND;
+	}
+
+	public int put(byte[] hash, int value) {
+		return put(hash, 0, value);
+	}
+
+	public int put(byte[] hash, int offset, int value) {
+		return put(high(hash, offset), low(hash, offset), value);
+	}
+
+	/**
+	 * @param value
+	 *            must not be negative
+	 * @return the previous value, or NOT_FOUND
+	 */
+	public int put(long high, long low, int value) {
+		if (value < 0) {
+			throw new IllegalArgumentException("negative value " + value);
+		}
+
+		modified();
+		int i = slot(high, low);
+		for (; valueAt(i) != NOT_FOUND; i = (i + 1) & mask) {
+			if (highAt(i) == high && lowAt(i) == low) {
+				int previous = valueAt(i);
+				setValueAt(i, value);
+				return previous;
+			}
+		}
+
+		setAt(i, high, low, value);
+		if (++size > threshold) {
+			rehash(capacity() << 1);
+		}
+		return NOT_FOUND;
+	}
+
+	public int remove(byte[] hash) {
+		return remove(hash, 0);
+	}
+
+	public int remove(byte[] hash, int offset) {
+		return remove(high(hash, offset), low(hash, offset));
+	}
+
+	/**
+	 * @return the removed value, or NOT_FOUND
+	 */
+	public int remove(long high, long low) {
+		int i = slot(high, low);
+		for (; valueAt(i) != NOT_FOUND; i = (i + 1) & mask) {
+			if (highAt(i) == high && lowAt(i) == low) {
+				modified();
+				int previous = valueAt(i);
+				shiftBack(i);
+				size--;
+				return previous;
+			}
+		}
+		return NOT_FOUND;
+	}
+
+	/**
+	 * Puxa para tras os nomes seguintes do mesmo cluster, para que nenhuma
+	 * busca pare antes da hora no buraco deixado em free.
+	 */
+	private void shiftBack(int free) {
+		int i = free;
+		while (true) {
+			i = (i + 1) & mask;
+			if (valueAt(i) == NOT_FOUND) { break; }
+
+			int home = slot(highAt(i), lowAt(i));
+			// O nome em i pode ir para free se free estiver entre home e i
+			// (circularmente)
+			if (((i - home) & mask) >= ((i - free) & mask)) {
+				setAt(free, highAt(i), lowAt(i), valueAt(i));
+				free = i;
+			}
+		}
+		setValueAt(free, NOT_FOUND);
+	}
+
+	/**
+	 * Aumenta a tabela de uma vez, antes de inserir muitos nomes.
+	 */
+	public void ensureCapacity(int names) {
+		int capacity = tableSizeFor(names);
+		if (capacity > capacity()) {
+			modified();
+			rehash(capacity);
+		}
+	}
+
+	private void rehash(int capacity) {
+		long[] oldHighs = new long[size];
+		long[] oldLows = new long[size];
+		int[] oldValues = new int[size];
+		int count = 0;
+		for (int i = 0; i < capacity(); i++) {
+			if (valueAt(i) != NOT_FOUND) {
+				oldHighs[count] = highAt(i);
+				oldLows[count] = lowAt(i);
+				oldValues[count++] = valueAt(i);
+			}
+		}
+
+		allocate(capacity);
+		threshold = (int) (capacity * LOAD_FACTOR);
+		for (int i = 0; i < count; i++) {
+			int k = slot(oldHighs[i], oldLows[i]);
+			while (valueAt(k) != NOT_FOUND) {
+				k = (k + 1) & mask;
+			}
+			setAt(k, oldHighs[i], oldLows[i], oldValues[i]);
+		}
+	}
+
+	/**
+	 * Remove todos os nomes, mantendo a capacidade atual.
+	 */
+	public void clear() {
+		modified();
+		allocate(capacity());
+		size = 0;
+	}
+
+	public int size() {
+		return size;
+	}
+}
@@ -9,6 +9,9 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.util.ArrayList;
@@ -41,6 +44,29 @@ public final class StackUtils {
 		}
 	}
 	
+	/**
+	 * Descomprime data direto no buffer dst. Se dst for um buffer de heap, nao
+	 * aloca nenhum byte[] intermediario.
+	 * 
+	 * @return o tamanho do dado descomprimido
+	 * @throws BufferOverflowException
+	 *             se dst nao tiver espaco suficiente
+	 */
+	public static int uncompress(byte[] data, ByteBuffer dst) throws IOException {
+		int length = Snappy.uncompressedLength(data);
+		if (dst.remaining() < length) {
+			throw new BufferOverflowException();
+		}
+
+		if (dst.hasArray()) {
+			Snappy.uncompress(data, 0, data.length, dst.array(), dst.arrayOffset() + dst.position());
+			((Buffer) dst).position(dst.position() + length);
+		} else {
+			dst.put(Snappy.uncompress(data));
+		}
+		return length;
+	}
+
 	public static byte[] compress(byte[] data) {
 		try {
 			return Snappy.compress(data);
@@ -163,7 +189,7 @@ public final class StackUtils {
 	 * @see MessageDigest
 	 */
 	public static byte[] strToMD5(final String str) {
-		return DigestUtils.md5(str);
+		return NameHasher.MD5.hash(str);
 	}
 
 	/**
@@ -257,12 +283,28 @@ public final class StackUtils {
 		return new File("/tmp/" + stackFile.getName() + ".tmp");
 	}
 
+	/**
+	 * Arquivo do Bloom filter dos nomes de uma stack, ao lado dela.
+	 */
+	public static File getFilterFile(final File stackFile) {
+		return new File(stackFile.getPath() + ".bloom");
+	}
+
 	public static DataOutputStream getDataStream(final File outputfile)
 			throws IOException {
 		OutputStream stream = new BufferedOutputStream(new FileOutputStream(outputfile, false));
 		return new DataOutputStream(stream);
 	}
 
+	/**
+	 * Como getDataStream(File), com um buffer de bufferSize bytes.
+	 */
+	public static DataOutputStream getDataStream(final File outputfile, int bufferSize)
+			throws IOException {
+		OutputStream stream = new BufferedOutputStream(new FileOutputStream(outputfile, false), bufferSize);
+		return new DataOutputStream(stream);
+	}
+
 	/**
 	 * Calcula o MD5 de um arquivo.<br>
 	 * 
@@ -0,0 +1,48 @@
+package org.filestacker.cache;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class IntLongIndexTest {
+
+	@Test
+	public void testPutGetRemove() {
+		IntLongIndex index = new IntLongIndex();
+		int keys = 10000;
+
+		for (int i = 0; i < keys; i++) {
+			index.put(i, (long) i << 40);
+		}
+		assertEquals(keys, index.size());
+		index.put(7, Long.MIN_VALUE);
+		assertEquals(keys, index.size());
+		assertEquals(Long.MIN_VALUE, index.get(7));
+		assertEquals(IntLongIndex.NOT_FOUND, index.get(keys));
+
+		// Remove os pares: os impares continuam acessiveis
+		for (int i = 0; i < keys; i += 2) {
+			assertEquals((long) i << 40, index.remove(i));
+		}
+		assertEquals(keys / 2, index.size());
+		for (int i = 0; i < keys; i++) {
+			long expected = (i % 2 == 0) ? IntLongIndex.NOT_FOUND : (i == 7 ? Long.MIN_VALUE : (long) i << 40);
+			assertEquals(expected, index.get(i));
+		}
+		assertEquals(IntLongIndex.NOT_FOUND, index.remove(0));
+
+		// As posicoes liberadas sao reusadas sem misturar os valores
+		for (int i = 0; i < keys; i += 2) {
+			index.put(i, -i - 2);
+		}
+		assertEquals(keys, index.size());
+		for (int i = 0; i < keys; i++) {
+			long expected = (i % 2 == 0) ? -i - 2 : (i == 7 ? Long.MIN_VALUE : (long) i << 40);
+			assertEquals(expected, index.get(i));
+		}
+
+		index.clear();
+		assertEquals(0, index.size());
+		assertEquals(IntLongIndex.NOT_FOUND, index.get(1));
+	}
+}
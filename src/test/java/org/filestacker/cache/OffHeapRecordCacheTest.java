@@ -0,0 +1,85 @@
+package org.filestacker.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+public class OffHeapRecordCacheTest {
+
+	@Test
+	public void testGetAndPut() {
+		RecordCache cache = new OffHeapRecordCache(1024 * 1024, 64 * 1024);
+		byte[] data = { 1, 2, 3 };
+
+		assertNull(cache.get(7));
+		cache.put(7, data);
+		data[0] = 42;
+		assertArrayEquals(new byte[] { 1, 2, 3 }, cache.get(7));
+
+		// Substitui o valor anterior
+		cache.put(7, new byte[] { 4, 5 });
+		assertArrayEquals(new byte[] { 4, 5 }, cache.get(7));
+		assertEquals(2, cache.getSize());
+
+		cache.invalidate(7);
+		assertNull(cache.get(7));
+		assertEquals(0, cache.getSize());
+		assertEquals(2, cache.getMisses());
+		assertEquals(2, cache.getHits());
+	}
+
+	@Test
+	public void testMaxSlabSize() {
+		int max = OffHeapRecordCache.MAX_SLAB_SIZE;
+		RecordCache cache = new OffHeapRecordCache(max, max);
+		// Um arquivo do tamanho do slab: o tamanho ainda cabe nos 24 bits
+		cache.put(1, new byte[max]);
+		assertEquals(max, cache.get(1).length);
+
+		try {
+			new OffHeapRecordCache(1 << 24, 1 << 24);
+			fail("slabs of 2^24 bytes should be rejected");
+		} catch (IllegalArgumentException expected) {
+		}
+	}
+
+	@Test
+	public void testSlabEviction() {
+		int slab = 10 * 1000;
+		// 1 segmento de 4 slabs
+		RecordCache cache = new OffHeapRecordCache(4 * slab, slab);
+
+		// 10 arquivos por slab: 4 slabs cheios
+		for (int i = 0; i < 40; i++) {
+			cache.put(i, new byte[1000]);
+		}
+		assertEquals(0, cache.getEvictions());
+		assertEquals(40 * 1000, cache.getSize());
+
+		// Mantem o primeiro slab quente
+		assertNotNull(cache.get(0));
+
+		// O quinto slab despeja o segundo (o LRU), inteiro
+		cache.put(100, new byte[1000]);
+		assertEquals(10, cache.getEvictions());
+		assertNotNull(cache.get(0));
+		for (int i = 10; i < 20; i++) {
+			assertNull(cache.get(i));
+		}
+		assertNotNull(cache.get(100));
+		assertTrue(cache.getSize() <= 4 * slab);
+
+		// Maior que um slab: nunca entra
+		cache.put(200, new byte[slab + 1]);
+		assertNull(cache.get(200));
+
+		cache.clear();
+		assertEquals(0, cache.getSize());
+		assertNull(cache.get(0));
+	}
+}
@@ -0,0 +1,107 @@
+package org.filestacker.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TinyLfuRecordCacheTest {
+
+	@Test
+	public void testGetAndPut() {
+		RecordCache cache = new TinyLfuRecordCache(1024 * 1024);
+		byte[] data = { 1, 2, 3 };
+
+		assertNull(cache.get(7));
+		cache.put(7, data);
+		assertArrayEquals(data, cache.get(7));
+
+		// O cache guarda uma copia
+		data[0] = 42;
+		assertEquals(1, cache.get(7)[0]);
+		cache.get(7)[0] = 42;
+		assertEquals(1, cache.get(7)[0]);
+
+		assertEquals(1, cache.getMisses());
+		assertEquals(4, cache.getHits());
+		assertEquals(3, cache.getSize());
+
+		cache.invalidate(7);
+		assertNull(cache.get(7));
+		assertEquals(0, cache.getSize());
+	}
+
+	@Test
+	public void testBudget() {
+		long budget = 64 * 1024;
+		RecordCache cache = new TinyLfuRecordCache(budget, 4);
+
+		for (int i = 0; i < 1000; i++) {
+			cache.put(i, new byte[1000]);
+			assertTrue(cache.getSize() <= budget);
+		}
+		assertTrue(cache.getEvictions() > 0);
+
+		// Maior que o segmento inteiro: nunca entra
+		cache.put(5000, new byte[(int) budget]);
+		assertNull(cache.get(5000));
+
+		cache.clear();
+		assertEquals(0, cache.getSize());
+	}
+
+	@Test
+	public void testAdmission() {
+		// Janela de 1000 bytes: arquivos maiores vao direto disputar o main
+		RecordCache cache = new TinyLfuRecordCache(100 * 1000, 1);
+		cache.put(1, new byte[49 * 1000]);
+		cache.put(2, new byte[49 * 1000]);
+		for (int i = 0; i < 5; i++) {
+			cache.get(2);
+		}
+
+		// Mais frequente que a primeira vitima (1), menos que a segunda (2):
+		// entra, e as duas saem
+		cache.get(3);
+		cache.get(3);
+		cache.put(3, new byte[60 * 1000]);
+		assertEquals(2, cache.getEvictions());
+		assertNotNull(cache.get(3));
+		assertNull(cache.get(1));
+		assertNull(cache.get(2));
+
+		// Menos frequente que a vitima: o candidato e' que sai, e o main fica
+		cache.put(4, new byte[60 * 1000]);
+		assertEquals(3, cache.getEvictions());
+		assertNull(cache.get(4));
+		assertNotNull(cache.get(3));
+	}
+
+	@Test
+	public void testFrequentStays() {
+		RecordCache cache = new TinyLfuRecordCache(100 * 1000, 1);
+
+		// Arquivos quentes, pedidos varias vezes
+		for (int round = 0; round < 10; round++) {
+			for (int hot = 0; hot < 20; hot++) {
+				if (cache.get(hot) == null) {
+					cache.put(hot, new byte[1000]);
+				}
+			}
+		}
+
+		// Uma varredura de arquivos frios, pedidos uma vez so
+		for (int cold = 1000; cold < 5000; cold++) {
+			if (cache.get(cold) == null) {
+				cache.put(cold, new byte[1000]);
+			}
+		}
+
+		for (int hot = 0; hot < 20; hot++) {
+			assertNotNull("hot " + hot, cache.get(hot));
+		}
+	}
+}
@@ -1,12 +1,18 @@
 package org.filestacker.service;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.File;
 import java.io.IOException;
 
+import org.filestacker.utils.StackUtils;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -175,6 +181,26 @@ public class LocalStackTest {
 		assertEquals(stack.getStackFile().length(), offsets2[docs]);
 	}
 
+	@Test
+	public void testMappedReads() throws IOException {
+		int docs = 500;
+		stack = generateTestStack(21, docs);
+		stack.setMappedReads(true);
+
+		// Ainda nao selada: nada de mapeamento
+		assertNull(stack.slice(0));
+
+		stack.seal();
+		for (int i = 0; i < docs; i++) {
+			byte[] expected = data[i % data.length];
+			assertArrayEquals(expected, stack.get(i));
+			assertArrayEquals(expected, stack.read(i));
+			assertEquals(expected.length, stack.slice(i).remaining());
+		}
+		assertNull(stack.slice(docs));
+		stack.close();
+	}
+
 	@Test
 	public void testIncremental() throws IOException {
 		int docs = 100;
@@ -206,6 +232,133 @@ public class LocalStackTest {
 				stack.getIndex()[docs + 2]);
 	}
 
+	@Test
+	public void testIncrementalHeader() throws IOException {
+		for (boolean inPlace : new boolean[] { false, true }) {
+			stack = new LocalStack(23, "/tmp");
+			stack.setInPlaceAppends(inPlace);
+			int docs = 0;
+			// Varios writeStack, cada um gravando somente as posicoes novas
+			for (int round = 0; round < 5; round++) {
+				for (int i = 0; i < 40; i++, docs++) {
+					assertTrue(stack.append("file" + docs, data[docs % data.length]));
+				}
+				assertTrue(stack.delete(docs - 3));
+				stack.writeStack();
+			}
+			stack.writeStack();
+			assertEquals(stack.getStackFile().length(), stack.getIndex()[docs]);
+			assertTrue(stack.close());
+
+			LocalStack loaded = LocalStack.loadStack(stack.getStackFile());
+			assertEquals(docs, loaded.nextPosition);
+			assertEquals(stack.getNumFiles(), loaded.getNumFiles());
+			assertEquals(stack.getUpdateTime(), loaded.getUpdateTime());
+			assertArrayEquals(stack.getIndex(), loaded.getIndex());
+			for (int i = 0; i < docs; i++) {
+				assertArrayEquals(stack.getHashedName(i), loaded.getHashedName(i));
+				assertEquals(stack.isDeleted(i), loaded.isDeleted(i));
+				assertArrayEquals(data[i % data.length], loaded.get(i));
+			}
+			loaded.close();
+		}
+	}
+
+	@Test
+	public void testAppendAfterWriteStack() throws IOException {
+		stack = new LocalStack(37, "/tmp");
+		stack.getStackFile().delete();
+		for (int i = 0; i < 10; i++) {
+			assertTrue(stack.append("file" + i, data[i % data.length]));
+		}
+		stack.writeStack();
+
+		// O append seguinte nao rele o header: os mesmos arrays continuam
+		int[] offsets = stack.offsets;
+		int[] status = stack.statusFiles;
+		for (int i = 10; i < 20; i++) {
+			assertTrue(stack.append("file" + i, data[i % data.length]));
+		}
+		assertSame(offsets, stack.offsets);
+		assertSame(status, stack.statusFiles);
+		stack.writeStack();
+		stack.close();
+
+		LocalStack loaded = LocalStack.loadStack(stack.getStackFile());
+		assertEquals(20, loaded.nextPosition);
+		for (int i = 0; i < 20; i++) {
+			assertArrayEquals(data[i % data.length], loaded.get(i));
+		}
+		loaded.close();
+	}
+
+	@Test
+	public void testHeaderBeforeMerge() throws IOException {
+		stack = new LocalStack(31, "/tmp");
+		stack.getStackFile().delete();
+		for (int i = 0; i < 10; i++) {
+			assertTrue(stack.append("file" + i, data[i % data.length]));
+		}
+
+		// Um crash entre o header e o merge: o merge falha
+		File temp = StackUtils.getTempFile(stack.getStackFile());
+		assertTrue(temp.delete());
+		assertTrue(temp.mkdir());
+		try {
+			stack.writeStack();
+			fail("merge of a directory should fail");
+		} catch (IOException expected) {
+		}
+		assertTrue(temp.delete());
+		stack.close();
+
+		// O header reservado nao aponta para dados que nao existem
+		LocalStack loaded = LocalStack.loadStack(stack.getStackFile());
+		assertEquals(0, loaded.nextPosition);
+		assertEquals(0, loaded.getNumFiles());
+		loaded.close();
+	}
+
+	@Test
+	public void testNameFilterWritten() throws IOException {
+		stack = new LocalStack(32, "/tmp");
+		stack.getStackFile().delete();
+		File filterFile = StackUtils.getFilterFile(stack.getStackFile());
+		filterFile.delete();
+		assertFalse(stack.mightContain(stack.getNameHasher().hash("file0")));
+
+		// Cheia: o writeStack ja grava o filtro, sem esperar o close
+		byte[] data = "x".getBytes();
+		for (int i = 0; i < Stack.MAX_FILES; i++) {
+			assertTrue(stack.append("file" + i, data));
+		}
+		assertFalse(filterFile.exists());
+		stack.writeStack();
+		assertTrue(filterFile.exists());
+		stack.close();
+
+		// Selada com espaco livre: o seal grava o filtro
+		stack = new LocalStack(33, "/tmp");
+		stack.getStackFile().delete();
+		filterFile = StackUtils.getFilterFile(stack.getStackFile());
+		filterFile.delete();
+		for (int i = 0; i < 10; i++) {
+			assertTrue(stack.append("file" + i, data));
+		}
+		assertTrue(stack.mightContain(stack.getNameHasher().hash("file0")));
+		stack.writeStack();
+		assertFalse(filterFile.exists());
+		stack.seal();
+		assertTrue(filterFile.exists());
+
+		// O filtro gravado vale para a stack: nao precisa do header
+		LocalStack loaded = LocalStack.loadStack(stack.getStackFile(), true);
+		assertTrue(loaded.mightContain(loaded.getNameHasher().hash("file9")));
+		assertFalse(loaded.isHeaderLoaded());
+		loaded.close();
+		stack.close();
+	}
+
 	@Test
 	public void testDeletes() throws IOException {
 		int ndocs = 100;
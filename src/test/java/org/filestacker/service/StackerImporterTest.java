@@ -0,0 +1,70 @@
+package org.filestacker.service;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Test;
+
+public class StackerImporterTest {
+
+	private final File source = new File("/tmp/importer-source");
+	private final String path = "/tmp/stacker/";
+	private Stacker stacker;
+
+	@After
+	public void tearDown() throws Exception {
+		stacker.close();
+		FileUtils.cleanDirectory(new File(path));
+		FileUtils.deleteDirectory(source);
+	}
+
+	@Test
+	public void testImportDirectory() throws IOException {
+		int nfiles = 1000;
+		long bytes = 0;
+		for (int i = 0; i < nfiles; i++) {
+			byte[] data = ("data" + i).getBytes();
+			FileUtils.writeByteArrayToFile(new File(source, "dir" + (i % 7) + "/sub" + (i % 3) + "/file" + i), data);
+			bytes += data.length;
+		}
+
+		stacker = new Stacker(path, true, true);
+		StackerImporter.Report report = new StackerImporter(stacker, 4).setBatchSize(50).importDirectory(source);
+		assertEquals(nfiles, report.getFiles());
+		assertEquals(0, report.getFailed());
+		assertEquals(bytes, report.getBytes());
+		assertEquals(nfiles, stacker.getTotalDocs());
+
+		// Ja legiveis, pelo caminho relativo ao diretorio importado
+		for (int i = 0; i < nfiles; i++) {
+			assertArrayEquals(("data" + i).getBytes(),
+					stacker.searchFile("dir" + (i % 7) + "/sub" + (i % 3) + "/file" + i));
+		}
+		stacker.close();
+
+		stacker = Stacker.loadStacker(path, true, true);
+		assertArrayEquals("data7".getBytes(), stacker.searchFile("dir0/sub1/file7"));
+	}
+
+	@Test
+	public void testOversizedFile() throws IOException {
+		FileUtils.writeByteArrayToFile(new File(source, "small"), "small".getBytes());
+		// Maior que qualquer stack (esparso, sem ocupar o disco)
+		RandomAccessFile huge = new RandomAccessFile(new File(source, "huge"), "rw");
+		huge.setLength(Stack.MAX_FILE_SIZE + 1);
+		huge.close();
+
+		stacker = new Stacker(path);
+		StackerImporter.Report report = new StackerImporter(stacker, 2).importDirectory(source);
+		assertEquals(1, report.getFiles());
+		assertEquals(1, report.getFailed());
+		assertEquals(5, report.getBytes());
+		assertArrayEquals("small".getBytes(), stacker.searchFile("small"));
+	}
+}
@@ -2,14 +2,43 @@ package org.filestacker.service;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.RandomStringUtils;
 import org.apache.log4j.BasicConfigurator;
+import org.filestacker.cache.RecordCache;
+import org.filestacker.cache.TinyLfuRecordCache;
+import org.filestacker.utils.NameHasher;
+import org.filestacker.utils.StackUtils;
 import org.junit.After;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -106,6 +135,956 @@ public class StackerTest {
 		assertEquals(ndocs, stacker.nextStackId);
 	}
 	
+	@Test
+	public void testConcurrentSearch() throws Exception {
+		stacker = new Stacker("/tmp/stacker/");
+		final int ndocs = Stack.MAX_FILES + 100;
+
+		for (int i = 0; i < ndocs; i++) {
+			stacker.addFile("file" + i, LocalStackTest.data[i % LocalStackTest.data.length]);
+		}
+		stacker.optimize();
+
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+		for (int t = 0; t < 8; t++) {
+			final int shift = t;
+			results.add(pool.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() throws IOException {
+					for (int k = 0; k < ndocs; k++) {
+						int i = (k * 7 + shift) % ndocs;
+						byte[] data = LocalStackTest.data[i % LocalStackTest.data.length];
+						assertArrayEquals(data, stacker.searchFile(i));
+					}
+					return true;
+				}
+			}));
+		}
+		for (Future<Boolean> result : results) {
+			assertTrue(result.get());
+		}
+		pool.shutdown();
+	}
+
+	@Test
+	public void testConcurrentNameLookups() throws Exception {
+		stacker = new Stacker("/tmp/stacker/");
+		final int ndocs = 2000;
+		final int nwrites = 20000;
+
+		for (int i = 0; i < ndocs; i++) {
+			stacker.addFile("file" + i, ("data" + i).getBytes());
+		}
+
+		// Leitores otimistas enquanto o namespace cresce (e e' rehasheado)
+		ExecutorService pool = Executors.newFixedThreadPool(5);
+		Future<Boolean> writer = pool.submit(new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				for (int i = 0; i < nwrites; i++) {
+					assertEquals(ndocs + i, stacker.addFile("new" + i, ("data" + i).getBytes()));
+				}
+				return true;
+			}
+		});
+		List<Future<Boolean>> readers = new ArrayList<Future<Boolean>>();
+		for (int t = 0; t < 4; t++) {
+			readers.add(pool.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() {
+					for (int k = 0; !writer.isDone(); k = (k + 1) % ndocs) {
+						assertEquals(k, stacker.nameToId("file" + k));
+					}
+					return true;
+				}
+			}));
+		}
+		assertTrue(writer.get());
+		for (Future<Boolean> reader : readers) {
+			assertTrue(reader.get());
+		}
+		pool.shutdown();
+		assertEquals(ndocs + nwrites - 1, stacker.nameToId("new" + (nwrites - 1)));
+	}
+
+	@Test
+	public void testStripedAppends() throws Exception {
+		String path = "/tmp/stacker/";
+		StackerConfig config = new StackerConfig().setAppendStripes(4);
+		stacker = new Stacker(path, config);
+		final int nthreads = 8;
+		final int perThread = 5000;
+
+		ExecutorService pool = Executors.newFixedThreadPool(nthreads);
+		List<Future<int[]>> results = new ArrayList<Future<int[]>>();
+		for (int t = 0; t < nthreads; t++) {
+			final int thread = t;
+			results.add(pool.submit(new Callable<int[]>() {
+				@Override
+				public int[] call() {
+					int[] ids = new int[perThread];
+					for (int i = 0; i < perThread; i++) {
+						ids[i] = stacker.addFile("t" + thread + "_" + i, ("data" + thread + "_" + i).getBytes());
+					}
+					return ids;
+				}
+			}));
+		}
+
+		int[][] ids = new int[nthreads][];
+		for (int t = 0; t < nthreads; t++) {
+			ids[t] = results.get(t).get();
+		}
+		pool.shutdown();
+		stacker.optimize();
+
+		// Cada arquivo com seu stackid, em stacks diferentes
+		Set<Integer> seen = new HashSet<Integer>();
+		for (int t = 0; t < nthreads; t++) {
+			for (int i = 0; i < perThread; i++) {
+				assertTrue(seen.add(ids[t][i]));
+				assertEquals(ids[t][i], stacker.nameToId("t" + t + "_" + i));
+				assertArrayEquals(("data" + t + "_" + i).getBytes(), stacker.searchFile(ids[t][i]));
+			}
+		}
+		assertEquals(nthreads * perThread, stacker.getTotalDocs());
+		assertTrue(stacker.getEntries().length >= 2);
+
+		// Um stackid reservado mas nao usado nao existe
+		StackerEntry first = stacker.getEntries()[0];
+		assertEquals(0, stacker.searchFile(first.getLastId() + 1).length);
+		assertNull(stacker.searchEntry(first.getLastId() + 1));
+
+		// Nome repetido: o anterior e' apagado
+		int old = stacker.nameToId("t0_0");
+		int id = stacker.addFile("t0_0", new byte[64 * 1024]);
+		assertTrue(stacker.isDeleted(old));
+		assertEquals(id, stacker.nameToId("t0_0"));
+		stacker.optimize();
+		stacker.close();
+
+		// Recarregado, as stacks com espaco no bloco voltam a receber appends
+		stacker = Stacker.loadStacker(path, config);
+		int stacks = stacker.getEntries().length;
+		for (int t = 0; t < nthreads; t++) {
+			assertEquals("t" + t, ("data" + t + "_7").getBytes().length,
+					stacker.searchFile("t" + t + "_7").length);
+		}
+		for (int i = 0; i < 8; i++) {
+			assertTrue(stacker.addFile("more" + i, ("more" + i).getBytes()) >= 0);
+		}
+		assertEquals(stacks, stacker.getEntries().length);
+		stacker.optimize();
+		stacker.close();
+
+		// E sem stripes continua depois da ultima
+		stacker = Stacker.loadStacker(path);
+		int last = stacker.getLastId();
+		assertEquals(last + 1, stacker.addFile("single", "single".getBytes()));
+		// more0 foi para o slot vago de t0_0, e ficou com o tamanho dele
+		for (int i = 0; i < 8; i++) {
+			assertEquals("more" + i, new String(stacker.searchFile("more" + i)).trim());
+		}
+		assertEquals(id, stacker.nameToId("t0_0"));
+	}
+
+	@Test
+	public void testAddFiles() throws IOException {
+		String path = "/tmp/stacker/";
+		for (boolean compress : new boolean[] { false, true }) {
+			stacker = new Stacker(path, true, compress);
+			Map<String, byte[]> files = new LinkedHashMap<String, byte[]>();
+			for (int i = 0; i < 3000; i++) {
+				files.put("file" + i, ("data" + i).getBytes());
+			}
+			int[] ids = stacker.addFiles(files);
+			assertEquals(files.size(), ids.length);
+			assertEquals(files.size(), stacker.getTotalDocs());
+
+			// Nome repetido no mesmo lote: fica o ultimo
+			List<Map.Entry<String, byte[]>> batch = new ArrayList<Map.Entry<String, byte[]>>();
+			batch.add(new AbstractMap.SimpleEntry<String, byte[]>("dup", "dup_1".getBytes()));
+			batch.add(new AbstractMap.SimpleEntry<String, byte[]>("dup", "dup_2".getBytes()));
+			int[] dups = stacker.addFiles(batch);
+			stacker.optimize();
+
+			for (int i = 0; i < ids.length; i++) {
+				assertEquals(ids[i], stacker.nameToId("file" + i));
+				assertArrayEquals(("data" + i).getBytes(), stacker.searchFile(ids[i]));
+			}
+			assertTrue(stacker.isDeleted(dups[0]));
+			assertEquals(dups[1], stacker.nameToId("dup"));
+			assertEquals("dup_2", new String(stacker.searchFile("dup")).trim());
+			assertEquals(0, stacker.addFiles(new HashMap<String, byte[]>()).length);
+			stacker.close();
+			FileUtils.cleanDirectory(new File(path));
+		}
+		stacker = new Stacker(path);
+	}
+
+	@Test
+	public void testInPlaceAppends() throws IOException {
+		String path = "/tmp/stacker/";
+		StackerConfig config = new StackerConfig().setInPlaceAppends(true);
+		stacker = new Stacker(path, config);
+		int ndocs = 100;
+		for (int i = 0; i < ndocs; i++) {
+			assertEquals(i, stacker.addFile("file" + i, ("data_" + i).getBytes()));
+		}
+
+		// Legiveis antes do optimize, e sem arquivo temporario
+		File stackFile = StackUtils.generateStackFile(0, path);
+		assertFalse(StackUtils.getTempFile(stackFile).exists());
+		for (int i = 0; i < ndocs; i++) {
+			assertArrayEquals(("data_" + i).getBytes(), stacker.searchFile(i));
+		}
+
+		// O slot de file3 e' reaproveitado por new_3, do mesmo tamanho
+		assertTrue(stacker.deleteFile("file3"));
+		assertEquals(3, stacker.addFile("new_3", "data_x".getBytes()));
+		stacker.optimize();
+		stacker.close();
+
+		stacker = Stacker.loadStacker(path, config);
+		assertEquals(ndocs, stacker.getTotalDocs());
+		assertArrayEquals("data_x".getBytes(), stacker.searchFile("new_3"));
+		assertEquals(ndocs, stacker.addFile("more", "more".getBytes()));
+		assertArrayEquals("more".getBytes(), stacker.searchFile(ndocs));
+
+		// Sem optimize, o header nao registra o ultimo append
+		stacker.close();
+		stacker = Stacker.loadStacker(path, config);
+		assertEquals(ndocs, stacker.getTotalDocs());
+		assertEquals(-1, stacker.nameToId("more"));
+		assertEquals(ndocs, stacker.addFile("again", "again".getBytes()));
+		stacker.optimize();
+		stacker.close();
+
+		// E a stack continua legivel sem o modo in place
+		stacker = Stacker.loadStacker(path);
+		for (int i = 0; i < ndocs; i++) {
+			if (i != 3) {
+				assertArrayEquals(("data_" + i).getBytes(), stacker.searchFile("file" + i));
+			}
+		}
+		assertArrayEquals("again".getBytes(), stacker.searchFile("again"));
+	}
+
+	@Test
+	public void testWriteAheadLog() throws IOException {
+		String path = "/tmp/stacker/";
+		File logFile = new File(path, Stacker.LOG_FILE);
+		StackerConfig config = new StackerConfig().setWriteAheadLog(true);
+		stacker = new Stacker(path, config);
+		int ndocs = 200;
+		for (int i = 0; i < ndocs; i++) {
+			assertEquals(i, stacker.addFile("file" + i, ("data_" + i).getBytes()));
+		}
+		stacker.optimize();
+		long empty = logFile.length();
+
+		// Depois do optimize: um replace, um delete e appends, somente no log
+		assertTrue(stacker.deleteFile("file5"));
+		assertEquals(5, stacker.addFile("new_5", "data_x".getBytes()));
+		assertTrue(stacker.deleteFile("file7"));
+		for (int i = ndocs; i < 2 * ndocs; i++) {
+			assertEquals(i, stacker.addFile("file" + i, ("data_" + i).getBytes()));
+		}
+		assertTrue(logFile.length() > empty);
+		crash(path);
+
+		stacker = Stacker.loadStacker(path, config);
+		assertEquals(empty, logFile.length());
+		assertEquals(5, stacker.nameToId("new_5"));
+		assertArrayEquals("data_x".getBytes(), stacker.searchFile(5));
+		assertTrue(stacker.isDeleted(7));
+		assertEquals(-1, stacker.nameToId("file7"));
+		for (int i = 0; i < 2 * ndocs; i++) {
+			if (i != 5 && i != 7) {
+				assertEquals(i, stacker.nameToId("file" + i));
+				assertArrayEquals(("data_" + i).getBytes(), stacker.searchFile(i));
+			}
+		}
+		assertEquals(2 * ndocs, stacker.addFile("last", "last_data_last".getBytes()));
+		crash(path);
+
+		// Um registro pela metade no fim do log (crash durante a escrita)
+		FileUtils.writeByteArrayToFile(logFile, new byte[] { 0, 0, 0, 100, 1, 0, 0 }, true);
+
+		// Mesmo sem o log nesta sessao, o que sobrou dele e' refeito e apagado
+		stacker = Stacker.loadStacker(path);
+		assertFalse(logFile.exists());
+		assertEquals(2 * ndocs, stacker.nameToId("last"));
+		assertArrayEquals("last_data_last".getBytes(), stacker.searchFile("last"));
+		stacker.close();
+		stacker = Stacker.loadStacker(path, config);
+		assertEquals(2 * ndocs, stacker.nameToId("last"));
+	}
+
+	@Test
+	public void testWriteAheadLogReopenWithoutLog() throws IOException {
+		String path = "/tmp/stacker/";
+		File logFile = new File(path, Stacker.LOG_FILE);
+		StackerConfig config = new StackerConfig().setWriteAheadLog(true);
+		stacker = new Stacker(path, config);
+		for (int i = 0; i < 10; i++) {
+			assertEquals(i, stacker.addFile("file" + i, ("data_" + i).getBytes()));
+		}
+		stacker.optimize();
+		// Um replace e um delete no log
+		assertTrue(stacker.deleteFile("file3"));
+		assertEquals(3, stacker.addFile("new_3", "data_x".getBytes()));
+		assertTrue(stacker.deleteFile("file5"));
+		long full = logFile.length();
+		stacker.close();
+		// O close deixa o log vazio
+		assertTrue(logFile.length() < full);
+
+		// Sem o log: os slots 3 e 5 sao reaproveitados de novo
+		stacker = Stacker.loadStacker(path);
+		assertTrue(stacker.deleteFile("new_3"));
+		int newer = stacker.addFile("newer", "data_y".getBytes());
+		int newest = stacker.addFile("newest", "data_z".getBytes());
+		assertEquals(8, newer + newest);
+		stacker.close();
+
+		// Com o log de novo: nada de registros velhos por cima
+		stacker = Stacker.loadStacker(path, config);
+		assertEquals(-1, stacker.nameToId("new_3"));
+		assertEquals(newer, stacker.nameToId("newer"));
+		assertEquals(newest, stacker.nameToId("newest"));
+		assertArrayEquals("data_y".getBytes(), stacker.searchFile(newer));
+		assertArrayEquals("data_z".getBytes(), stacker.searchFile(newest));
+		assertArrayEquals("data_9".getBytes(), stacker.searchFile("file9"));
+	}
+
+	/**
+	 * Fecha o stacker como num crash: o diretorio volta a ter somente o que ja
+	 * estava no disco antes do close.
+	 */
+	private void crash(String path) throws IOException {
+		File snapshot = new File("/tmp/stacker-crash");
+		FileUtils.deleteDirectory(snapshot);
+		FileUtils.copyDirectory(new File(path), snapshot);
+		stacker.close();
+		FileUtils.cleanDirectory(new File(path));
+		FileUtils.copyDirectory(snapshot, new File(path));
+		FileUtils.deleteDirectory(snapshot);
+	}
+
+	@Test
+	public void testDurability() throws IOException {
+		String path = "/tmp/stacker/";
+		assertEquals(StackerConfig.Durability.NONE, new StackerConfig().getDurability());
+		assertEquals(StackerConfig.Durability.PER_BATCH,
+				new StackerConfig().setWriteAheadLog(true).getDurability());
+
+		// PER_BATCH sem log: cada addFile e deleteFile ja esta nas stacks
+		StackerConfig config = new StackerConfig().setDurability(StackerConfig.Durability.PER_BATCH);
+		stacker = new Stacker(path, config);
+		for (int i = 0; i < 30; i++) {
+			assertEquals(i, stacker.addFile("file" + i, ("data_" + i).getBytes()));
+		}
+		assertTrue(stacker.deleteFile("file3"));
+
+		// Syncs concorrentes: o fsync e' feito fora do lock do Stacker
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		List<Future<?>> adds = new ArrayList<Future<?>>();
+		for (int t = 0; t < 4; t++) {
+			final int thread = t;
+			adds.add(pool.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws IOException {
+					for (int i = 0; i < 20; i++) {
+						stacker.addFile("file" + thread + "_" + i, ("data_" + thread).getBytes());
+					}
+					return null;
+				}
+			}));
+		}
+		for (Future<?> add : adds) {
+			try {
+				add.get();
+			} catch (Exception e) {
+				fail(e.toString());
+			}
+		}
+		pool.shutdown();
+		for (StackerEntry entry : stacker.entries) {
+			assertNull(entry.takeUnsynced());
+		}
+		stacker.close();
+
+		stacker = Stacker.loadStacker(path, config);
+		assertEquals(29, stacker.nameToId("file29"));
+		// O slot do file3 pode ter sido reaproveitado pelas threads
+		assertEquals(-1, stacker.nameToId("file3"));
+		assertArrayEquals("data_29".getBytes(), stacker.searchFile("file29"));
+		for (int t = 0; t < 4; t++) {
+			assertArrayEquals(("data_" + t).getBytes(), stacker.searchFile("file" + t + "_19"));
+		}
+		stacker.close();
+		FileUtils.cleanDirectory(new File(path));
+
+		// PERIODIC a cada 70 bytes: um sync a cada 10 arquivos de 7 bytes
+		config = new StackerConfig().setDurability(StackerConfig.Durability.PERIODIC).setSyncBytes(70)
+				.setSyncInterval(3600 * 1000);
+		stacker = new Stacker(path, config);
+		for (int i = 0; i < 41; i++) {
+			assertEquals(i, stacker.addFile("file" + i, String.format("data_%02d", i).getBytes()));
+		}
+		stacker.close();
+
+		stacker = Stacker.loadStacker(path, config);
+		assertEquals(39, stacker.nameToId("file39"));
+		assertArrayEquals("data_39".getBytes(), stacker.searchFile("file39"));
+		assertEquals(-1, stacker.nameToId("file40"));
+		assertNull(stacker.getSyncFailure());
+		stacker.close();
+		FileUtils.cleanDirectory(new File(path));
+
+		// Um sync que falha nao desfaz o addFile: o id continua valido
+		stacker = new Stacker(path, new StackerConfig().setWriteAheadLog(true));
+		assertEquals(0, stacker.addFile("file0", "data_0".getBytes()));
+		stacker.log.close();
+		assertEquals(1, stacker.addFile("file1", "data_1".getBytes()));
+		assertNotNull(stacker.getSyncFailure());
+		assertEquals(2, stacker.getTotalDocs());
+		assertEquals(1, stacker.nameToId("file1"));
+	}
+
+	@Test
+	public void testAddFileAsync() throws Exception {
+		String path = "/tmp/stacker/";
+		// Fila pequena: os produtores esperam o writer (backpressure)
+		stacker = new Stacker(path, new StackerConfig().setWriteQueue(8));
+		final int nthreads = 4;
+		final int perThread = 300;
+
+		ExecutorService pool = Executors.newFixedThreadPool(nthreads);
+		List<Future<List<CompletableFuture<Integer>>>> results = new ArrayList<Future<List<CompletableFuture<Integer>>>>();
+		for (int t = 0; t < nthreads; t++) {
+			final int thread = t;
+			results.add(pool.submit(new Callable<List<CompletableFuture<Integer>>>() {
+				@Override
+				public List<CompletableFuture<Integer>> call() {
+					List<CompletableFuture<Integer>> ids = new ArrayList<CompletableFuture<Integer>>();
+					for (int i = 0; i < perThread; i++) {
+						String name = "file" + thread + "_" + i;
+						ids.add(stacker.addFileAsync(name, ("data_" + name).getBytes()));
+					}
+					return ids;
+				}
+			}));
+		}
+
+		Set<Integer> ids = new HashSet<Integer>();
+		for (int t = 0; t < nthreads; t++) {
+			List<CompletableFuture<Integer>> futures = results.get(t).get();
+			for (int i = 0; i < perThread; i++) {
+				int id = futures.get(i).get();
+				assertTrue(ids.add(id));
+				// Ja no namespace quando o future completa
+				assertEquals(id, stacker.nameToId("file" + t + "_" + i));
+			}
+		}
+		pool.shutdown();
+		assertEquals(nthreads * perThread, stacker.getTotalDocs());
+		stacker.optimize();
+		for (int t = 0; t < nthreads; t++) {
+			for (int i = 0; i < perThread; i++) {
+				String name = "file" + t + "_" + i;
+				assertArrayEquals(("data_" + name).getBytes(), stacker.searchFile(name));
+			}
+		}
+
+		// O optimize escreve antes o que ainda estiver na fila
+		CompletableFuture<Integer> last = stacker.addFileAsync("last", "last_data_last".getBytes());
+		stacker.optimize();
+		assertTrue(last.isDone());
+		stacker.close();
+		assertTrue(stacker.addFileAsync("closed", "data".getBytes()).isCompletedExceptionally());
+
+		stacker = Stacker.loadStacker(path);
+		assertArrayEquals("last_data_last".getBytes(), stacker.searchFile("last"));
+		assertArrayEquals("data_file3_299".getBytes(), stacker.searchFile("file3_299"));
+	}
+
+	@Test
+	public void testWriteAheadLogFailure() throws IOException {
+		String path = "/tmp/stacker/";
+		stacker = new Stacker(path, new StackerConfig().setWriteAheadLog(true).setInPlaceAppends(true)
+				.setDurability(StackerConfig.Durability.NONE));
+		assertEquals(0, stacker.addFile("file0", "data_0".getBytes()));
+
+		// O log falha depois do append na stack: o Stacker continua em dia
+		stacker.log.close();
+		stacker.addFile("file1", "data_1".getBytes());
+		assertEquals(2, stacker.addFile("file2", "data_2".getBytes()));
+		assertNotNull(stacker.log.getFailure());
+		assertEquals(3, stacker.getTotalDocs());
+		for (int i = 0; i < 3; i++) {
+			assertEquals(i, stacker.nameToId("file" + i));
+			assertArrayEquals(("data_" + i).getBytes(), stacker.searchFile("file" + i));
+		}
+		try {
+			stacker.sync();
+			fail("sync should report the log failure");
+		} catch (IOException expected) {
+		}
+	}
+
+	@Test
+	public void testWriteAheadLogStriped() throws Exception {
+		String path = "/tmp/stacker/";
+		final StackerConfig config = new StackerConfig().setWriteAheadLog(true).setAppendStripes(3);
+		stacker = new Stacker(path, config);
+		final int nthreads = 6;
+		final int perThread = 500;
+
+		ExecutorService pool = Executors.newFixedThreadPool(nthreads);
+		List<Future<int[]>> results = new ArrayList<Future<int[]>>();
+		for (int t = 0; t < nthreads; t++) {
+			final int thread = t;
+			results.add(pool.submit(new Callable<int[]>() {
+				@Override
+				public int[] call() {
+					int[] ids = new int[perThread];
+					for (int i = 0; i < perThread; i++) {
+						ids[i] = stacker.addFile("t" + thread + "_" + i, ("data" + thread + "_" + i).getBytes());
+					}
+					return ids;
+				}
+			}));
+		}
+		int[][] ids = new int[nthreads][];
+		for (int t = 0; t < nthreads; t++) {
+			ids[t] = results.get(t).get();
+		}
+		pool.shutdown();
+		crash(path);
+
+		// Os appends de varias threads na mesma stack voltam nas mesmas posicoes
+		stacker = Stacker.loadStacker(path, config);
+		assertEquals(nthreads * perThread, stacker.getTotalDocs());
+		for (int t = 0; t < nthreads; t++) {
+			for (int i = 0; i < perThread; i++) {
+				assertEquals(ids[t][i], stacker.nameToId("t" + t + "_" + i));
+				assertArrayEquals(("data" + t + "_" + i).getBytes(), stacker.searchFile(ids[t][i]));
+			}
+		}
+	}
+
+	@Test
+	public void testMappedReads() throws IOException {
+		String path = "/tmp/stacker/";
+		int ndocs = Stack.MAX_FILES * 2 + 10;
+		stacker = new Stacker(path, new StackerConfig().setMappedReads(true));
+
+		for (int i = 0; i < ndocs; i++) {
+			stacker.addFile("file" + i, LocalStackTest.data[i % LocalStackTest.data.length]);
+		}
+		stacker.optimize();
+		assertTrue(stacker.getEntries()[0].isSealed());
+
+		for (int i = 0; i < ndocs; i++) {
+			assertArrayEquals(LocalStackTest.data[i % LocalStackTest.data.length], stacker.searchFile(i));
+		}
+		stacker.close();
+
+		stacker = Stacker.loadStacker(path, new StackerConfig().setMappedReads(true));
+		for (int i = 0; i < ndocs; i++) {
+			assertArrayEquals(LocalStackTest.data[i % LocalStackTest.data.length], stacker.searchFile("file" + i));
+		}
+	}
+
+	@Test
+	public void testReadIntoAndTransferTo() throws IOException {
+		String path = "/tmp/stacker/";
+		int ndocs = 50;
+		boolean[] compression = { false, true };
+
+		for (boolean compress : compression) {
+			stacker = new Stacker(path, true, compress);
+			for (int i = 0; i < ndocs; i++) {
+				stacker.addFile("file" + i, LocalStackTest.data[i % LocalStackTest.data.length]);
+			}
+			stacker.optimize();
+
+			ByteBuffer buffer = ByteBuffer.allocate(1024);
+			for (int i = 0; i < ndocs; i++) {
+				byte[] data = LocalStackTest.data[i % LocalStackTest.data.length];
+
+				buffer.clear();
+				assertEquals(data.length, stacker.readInto(i, buffer));
+				buffer.flip();
+				byte[] actual = new byte[buffer.remaining()];
+				buffer.get(actual);
+				assertArrayEquals(data, actual);
+
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				WritableByteChannel channel = Channels.newChannel(bytes);
+				assertEquals(data.length, stacker.transferTo("file" + i, channel));
+				assertArrayEquals(data, bytes.toByteArray());
+			}
+			assertEquals(-1, stacker.readInto(ndocs, buffer));
+			assertEquals(-1, stacker.transferTo("nofile", Channels.newChannel(new ByteArrayOutputStream())));
+
+			stacker.close();
+			FileUtils.cleanDirectory(new File(path));
+		}
+		stacker = new Stacker(path);
+	}
+
+	@Test
+	public void testOpenStream() throws IOException {
+		stacker = new Stacker("/tmp/stacker/");
+		int ndocs = 10;
+
+		byte[][] docs = new byte[ndocs][];
+		for (int i = 0; i < ndocs; i++) {
+			docs[i] = RandomStringUtils.randomAlphanumeric(120 * 1024 + i).getBytes();
+			stacker.addFile("file" + i, docs[i]);
+		}
+		stacker.optimize();
+
+		for (int i = 0; i < ndocs; i++) {
+			InputStream in = stacker.openStream(i);
+			assertEquals(docs[i].length, in.available());
+			assertArrayEquals(docs[i], IOUtils.toByteArray(in));
+			assertEquals(-1, in.read());
+			in.close();
+
+			in = stacker.openStream("file" + i);
+			assertEquals(1000, in.skip(1000));
+			assertEquals(docs[i][1000], (byte) in.read());
+			in.close();
+		}
+		assertEquals(-1, stacker.openStream(ndocs).read());
+	}
+
+	@Test
+	public void testSearchFiles() throws IOException {
+		stacker = new Stacker("/tmp/stacker/");
+		int ndocs = Stack.MAX_FILES + 500;
+
+		for (int i = 0; i < ndocs; i++) {
+			stacker.addFile("file" + i, LocalStackTest.data[i % LocalStackTest.data.length]);
+		}
+		stacker.optimize();
+
+		// Fora de ordem, repetidos, espalhados pelas duas stacks e invalidos
+		int[] ids = new int[1000];
+		for (int k = 0; k < ids.length; k++) {
+			ids[k] = (k * 7919) % ndocs;
+		}
+		ids[10] = ids[11];
+		ids[20] = -5;
+		ids[30] = ndocs + 3;
+
+		byte[][] results = stacker.searchFiles(ids);
+		assertEquals(ids.length, results.length);
+		for (int k = 0; k < ids.length; k++) {
+			if (ids[k] < 0 || ids[k] >= ndocs) {
+				assertEquals(0, results[k].length);
+			} else {
+				assertArrayEquals(LocalStackTest.data[ids[k] % LocalStackTest.data.length], results[k]);
+			}
+		}
+
+		String[] names = { "file3", "nofile", "file" + (ndocs - 1), "file3" };
+		results = stacker.searchFiles(names);
+		assertArrayEquals(LocalStackTest.data[3 % LocalStackTest.data.length], results[0]);
+		assertEquals(0, results[1].length);
+		assertArrayEquals(LocalStackTest.data[(ndocs - 1) % LocalStackTest.data.length], results[2]);
+		assertArrayEquals(results[0], results[3]);
+	}
+
+	@Test
+	public void testSearchFileAsync() throws Exception {
+		ExecutorService pool = Executors.newFixedThreadPool(2);
+		stacker = new Stacker("/tmp/stacker/", new StackerConfig().setCompression(true).setIoExecutor(pool));
+		int ndocs = 2000;
+
+		for (int i = 0; i < ndocs; i++) {
+			stacker.addFile("file" + i, LocalStackTest.data[i % LocalStackTest.data.length]);
+		}
+		stacker.optimize();
+
+		List<CompletableFuture<byte[]>> futures = new ArrayList<CompletableFuture<byte[]>>();
+		for (int i = 0; i < ndocs; i++) {
+			futures.add(stacker.searchFileAsync(i));
+		}
+		for (int i = 0; i < ndocs; i++) {
+			assertArrayEquals(LocalStackTest.data[i % LocalStackTest.data.length], futures.get(i).get());
+		}
+		assertArrayEquals(LocalStackTest.data[1], stacker.searchFileAsync("file1").get());
+		assertEquals(0, stacker.searchFileAsync("nofile").get().length);
+
+		pool.shutdown();
+	}
+
+	@Test
+	public void testRecordCache() throws IOException {
+		RecordCache cache = new TinyLfuRecordCache(1024 * 1024);
+		stacker = new Stacker("/tmp/stacker/", new StackerConfig().setRecordCache(cache));
+		int ndocs = 50;
+
+		for (int i = 0; i < ndocs; i++) {
+			stacker.addFile("file" + i, LocalStackTest.data[i % LocalStackTest.data.length]);
+		}
+		stacker.optimize();
+
+		for (int round = 0; round < 3; round++) {
+			for (int i = 0; i < ndocs; i++) {
+				assertArrayEquals(LocalStackTest.data[i % LocalStackTest.data.length], stacker.searchFile(i));
+			}
+		}
+		assertEquals(ndocs, cache.getMisses());
+		assertEquals(ndocs * 2, cache.getHits());
+
+		// Replace num slot vago: o id reaproveitado nao pode vir do cache
+		byte[] small = { 'x' };
+		assertTrue(stacker.deleteFile("file3"));
+		int id = stacker.addFile("other", small);
+		assertEquals(3, id);
+		assertEquals('x', stacker.searchFile(id)[0]);
+		assertEquals('x', stacker.searchFile("other")[0]);
+	}
+
+	@Test
+	public void testRecordCacheConcurrentReplace() throws Exception {
+		// Um put lento alarga a janela entre a leitura e o put no cache
+		RecordCache cache = new TinyLfuRecordCache(1024 * 1024) {
+			@Override
+			public void put(int stackid, byte[] data) {
+				LockSupport.parkNanos(50000);
+				super.put(stackid, data);
+			}
+		};
+		stacker = new Stacker("/tmp/stacker/", new StackerConfig().setRecordCache(cache));
+		stacker.addFile("file", "v00000".getBytes());
+		stacker.optimize();
+		final int versions = 2000;
+
+		// Leitores enchem o cache enquanto o slot e' reescrito
+		final AtomicBoolean done = new AtomicBoolean();
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		List<Future<?>> readers = new ArrayList<Future<?>>();
+		for (int t = 0; t < 4; t++) {
+			readers.add(pool.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws IOException {
+					while (!done.get()) {
+						stacker.searchFile(0);
+					}
+					return null;
+				}
+			}));
+		}
+		for (int v = 1; v <= versions; v++) {
+			assertTrue(stacker.deleteFile("file"));
+			assertEquals(0, stacker.addFile("file", String.format("v%05d", v).getBytes()));
+		}
+		done.set(true);
+		for (Future<?> reader : readers) {
+			reader.get();
+		}
+		pool.shutdown();
+
+		// Nenhuma versao velha pode ter ficado no cache
+		assertArrayEquals(String.format("v%05d", versions).getBytes(), stacker.searchFile(0));
+	}
+
+	@Test
+	public void testNamespaceFile() throws IOException {
+		String path = "/tmp/stacker/";
+		StackerConfig config = new StackerConfig().setNamespaceFile(true);
+		stacker = new Stacker(path, config);
+		int ndocs = 50;
+
+		for (int i = 0; i < ndocs; i++) {
+			stacker.addFile("file" + i, LocalStackTest.data[i % LocalStackTest.data.length]);
+		}
+		stacker.optimize();
+		assertTrue(stacker.deleteFile("file7"));
+		assertEquals(-1, stacker.nameToId("file7"));
+		// Nome que so existe no indice: mostra se ele foi reconstruido
+		stacker.namespace.put(StackUtils.strToMD5("ghost"), 3);
+		stacker.close();
+
+		stacker = Stacker.loadStacker(path, config);
+		assertEquals(3, stacker.nameToId("ghost"));
+		assertEquals(-1, stacker.nameToId("file7"));
+		for (int i = 0; i < ndocs; i++) {
+			if (i != 7) {
+				assertArrayEquals(LocalStackTest.data[i % LocalStackTest.data.length], stacker.searchFile("file" + i));
+			}
+		}
+		stacker.close();
+
+		// Alterada sem o indice: ele fica invalido
+		stacker = Stacker.loadStacker(path);
+		assertTrue(stacker.deleteFile("file8"));
+		stacker.close();
+
+		stacker = Stacker.loadStacker(path, config);
+		assertEquals(-1, stacker.nameToId("ghost"));
+		assertEquals(-1, stacker.nameToId("file8"));
+		assertEquals(9, stacker.nameToId("file9"));
+
+		// Appends sem optimize nao chegam ao disco: o indice tambem nao vale
+		// (grande demais para os slots vagos de file7 e file8)
+		stacker.addFile("tail", new byte[64 * 1024]);
+		stacker.close();
+		stacker = Stacker.loadStacker(path, config);
+		assertEquals(-1, stacker.nameToId("tail"));
+		assertEquals(9, stacker.nameToId("file9"));
+	}
+
+	@Test
+	public void testParallelLoad() throws IOException {
+		String path = "/tmp/stacker/";
+		stacker = new Stacker(path);
+		int ndocs = 2 * Stack.MAX_FILES + 100;
+
+		for (int i = 0; i < ndocs; i++) {
+			stacker.addFile("file" + i, ("data" + i).getBytes());
+		}
+		stacker.optimize();
+		assertTrue(stacker.deleteFile("file5"));
+		assertTrue(stacker.deleteFile("file" + (Stack.MAX_FILES + 5)));
+		stacker.close();
+
+		stacker = Stacker.loadStacker(path, new StackerConfig().setLoadParallelism(4));
+		assertEquals(3, stacker.getEntries().length);
+		for (int i = 0; i < 3; i++) {
+			assertEquals(i * Stack.MAX_FILES, stacker.getEntries()[i].firstId);
+		}
+		assertEquals(ndocs, stacker.nextStackId);
+		assertEquals(ndocs - 2, stacker.totalDocs);
+
+		for (int i = 0; i < ndocs; i += 97) {
+			int expected = (i == 5 || i == Stack.MAX_FILES + 5) ? -1 : i;
+			assertEquals(expected, stacker.nameToId("file" + i));
+		}
+		assertEquals(-1, stacker.nameToId("file" + (Stack.MAX_FILES + 5)));
+		// Ultimo nome de uma stack com deletados
+		assertEquals(Stack.MAX_FILES - 1, stacker.nameToId("file" + (Stack.MAX_FILES - 1)));
+		assertEquals(ndocs - 1, stacker.nameToId("file" + (ndocs - 1)));
+		assertArrayEquals(("data" + (ndocs - 1)).getBytes(), stacker.searchFile("file" + (ndocs - 1)));
+	}
+
+	@Test
+	public void testLazyHeaders() throws IOException {
+		String path = "/tmp/stacker/";
+		stacker = new Stacker(path, new StackerConfig().setNamespaceFile(true));
+		int ndocs = 2 * Stack.MAX_FILES + 100;
+
+		for (int i = 0; i < ndocs; i++) {
+			stacker.addFile("file" + i, ("data" + i).getBytes());
+		}
+		stacker.optimize();
+		assertTrue(stacker.deleteFile("file5"));
+		stacker.close();
+
+		StackerConfig config = new StackerConfig().setNamespaceFile(true).setLazyHeaders(true).setMaxLoadedHeaders(1);
+		stacker = Stacker.loadStacker(path, config);
+		// Somente a stack com deletados, para a lista de slots vagos
+		assertEquals(1, stacker.getLoadedHeaders());
+		assertEquals(ndocs - 1, stacker.totalDocs);
+		assertTrue(stacker.isDeleted(5));
+
+		// Cada busca em outra stack descarrega a usada ha mais tempo
+		for (int round = 0; round < 2; round++) {
+			for (int i = 7; i < ndocs; i += Stack.MAX_FILES) {
+				assertArrayEquals(("data" + i).getBytes(), stacker.searchFile("file" + i));
+				assertTrue(stacker.getLoadedHeaders() <= 2);
+			}
+		}
+		assertEquals(0, stacker.searchFile("file5").length);
+		assertTrue(stacker.deleteFile("file6"));
+		assertEquals(-1, stacker.nameToId("file6"));
+	}
+
+	@Test
+	public void testNameHasher() throws IOException {
+		String path = "/tmp/stacker/";
+		stacker = new Stacker(path, new StackerConfig().setNameHasher(NameHasher.MURMUR3_128));
+		int ndocs = Stack.MAX_FILES + 100;
+
+		for (int i = 0; i < ndocs; i++) {
+			stacker.addFile("file" + i, ("data" + i).getBytes());
+		}
+		assertTrue(stacker.deleteFile("file3"));
+		stacker.optimize();
+		stacker.close();
+
+		// O hash gravado no header vale mais que o do config
+		for (LocalStack stack : Stacker.stacks(path)) {
+			assertEquals(NameHasher.MURMUR3_128, stack.getNameHasher());
+		}
+		stacker = Stacker.loadStacker(path, new StackerConfig());
+		assertEquals(NameHasher.MURMUR3_128, stacker.getNameHasher());
+		for (int i = 0; i < ndocs; i += 97) {
+			assertEquals(i, stacker.nameToId("file" + i));
+		}
+		assertEquals(-1, stacker.nameToId("file3"));
+		assertArrayEquals(("data" + (ndocs - 1)).getBytes(), stacker.searchFile("file" + (ndocs - 1)));
+		assertEquals(3, stacker.addFile("file3", "new_3".getBytes()));
+		assertEquals(3, stacker.nameToId("file3"));
+	}
+
+	@Test
+	public void testNoGlobalNamespace() throws IOException {
+		String path = "/tmp/stacker/";
+		StackerConfig config = new StackerConfig().setGlobalNamespace(false);
+		stacker = new Stacker(path, config);
+		int ndocs = Stack.MAX_FILES + 2000;
+
+		for (int i = 0; i < ndocs; i++) {
+			stacker.addFile("file" + i, ("data" + i).getBytes());
+		}
+		stacker.optimize();
+		assertNull(stacker.namespace);
+
+		// O nome repetido apaga o anterior, e vai para o slot vago de file10
+		assertTrue(stacker.deleteFile("file10"));
+		assertEquals(-1, stacker.nameToId("file10"));
+		assertEquals(10, stacker.addFile("file20", "new_20".getBytes()));
+		assertTrue(stacker.isDeleted(20));
+		assertEquals(10, stacker.nameToId("file20"));
+		assertArrayEquals("new_20".getBytes(), stacker.searchFile("file20"));
+		stacker.optimize();
+		stacker.close();
+
+		stacker = Stacker.loadStacker(path, config);
+		for (int i = 1; i < ndocs; i += 111) {
+			assertEquals("file" + i, i, stacker.nameToId("file" + i));
+		}
+		assertEquals(ndocs - 1, stacker.nameToId("file" + (ndocs - 1)));
+		assertEquals(-1, stacker.nameToId("file10"));
+		assertEquals(10, stacker.nameToId("file20"));
+		assertArrayEquals("new_20".getBytes(), stacker.searchFile("file20"));
+		assertEquals(-1, stacker.nameToId("nofile"));
+		stacker.close();
+
+		// Os Bloom filters foram gravados: nomes inexistentes nao carregam
+		// nenhum header
+		for (LocalStack stack : Stacker.stacks(path)) {
+			assertTrue(StackUtils.getFilterFile(stack.getStackFile()).exists());
+		}
+		stacker = Stacker.loadStacker(path, new StackerConfig().setGlobalNamespace(false).setLazyHeaders(true));
+		int loaded = stacker.getLoadedHeaders();
+		for (int i = 0; i < 20; i++) {
+			assertEquals(-1, stacker.nameToId("nofile" + i));
+		}
+		assertEquals(loaded, stacker.getLoadedHeaders());
+		assertEquals(ndocs - 1, stacker.nameToId("file" + (ndocs - 1)));
+		assertEquals(10, stacker.nameToId("file20"));
+	}
+
 	@Test
 	public void testNamespace() throws IOException {
 		stacker = new Stacker("/tmp/stacker/");
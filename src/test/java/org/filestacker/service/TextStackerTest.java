@@ -1,6 +1,7 @@
 package org.filestacker.service;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.fail;
 
 import java.io.File;
@@ -12,6 +13,8 @@ import java.util.List;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.RandomStringUtils;
 import org.apache.log4j.BasicConfigurator;
+import org.filestacker.cache.OffHeapRecordCache;
+import org.filestacker.cache.RecordCache;
 import org.junit.After;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -101,6 +104,55 @@ public class TextStackerTest {
 		assertEquals(ndocs, stacker.nextStackId);
 	}
 	
+	@Test
+	public void testConfigNotChanged() throws IOException {
+		StackerConfig config = new StackerConfig();
+		stacker = new TextStacker(STACK_PATH, config);
+		stacker.addText("file", "text");
+		stacker.optimize();
+		assertFalse(config.isCompression());
+		stacker.close();
+
+		// Recarregado com o mesmo config, que continua sem compressao
+		stacker = TextStacker.loadStacker(STACK_PATH, config);
+		assertEquals("text", stacker.searchText("file"));
+		assertFalse(config.isCompression());
+	}
+
+	@Test
+	public void testOffHeapCache() throws IOException {
+		boolean[] modes = { false, true };
+		for (boolean compressed : modes) {
+			RecordCache cache = new OffHeapRecordCache(1024 * 1024, 64 * 1024);
+			stacker = new TextStacker(STACK_PATH, new StackerConfig().setRecordCache(cache).setCacheCompressed(compressed));
+			int ndocs = 50;
+
+			for (int i = 0; i < ndocs; i++) {
+				stacker.addText("file" + i, data[i % data.length]);
+			}
+			stacker.optimize();
+
+			for (int round = 0; round < 2; round++) {
+				for (int i = 0; i < ndocs; i++) {
+					assertEquals(data[i % data.length], stacker.searchText(i));
+				}
+			}
+			assertEquals(ndocs, cache.getHits());
+			assertEquals(ndocs, cache.getMisses());
+
+			long size = 0;
+			for (int i = 0; i < ndocs; i++) {
+				size += data[i % data.length].getBytes().length;
+			}
+			// Comprimido ou nao, conforme o modo
+			assertEquals(!compressed, cache.getSize() == size);
+
+			stacker.close();
+			FileUtils.cleanDirectory(new File(STACK_PATH));
+			stacker = null;
+		}
+	}
+
 	final static String[] data = {
 		"abcde fgh ij klmnop qrst uvwxyz \n",
 		"so paulo corinthians atltico-mg amrica-rj \t\n",
@@ -0,0 +1,45 @@
+package org.filestacker.utils;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class BloomFilterTest {
+
+	@Test
+	public void testMightContain() throws IOException {
+		int names = 10000;
+		BloomFilter filter = new BloomFilter(names);
+		for (int i = 0; i < names; i++) {
+			filter.add(StackUtils.strToMD5("file" + i));
+		}
+
+		// Sem falsos negativos, e poucos falsos positivos (~1%)
+		int falsePositives = 0;
+		for (int i = 0; i < names; i++) {
+			assertTrue(filter.mightContain(StackUtils.strToMD5("file" + i)));
+			if (filter.mightContain(StackUtils.strToMD5("nofile" + i))) {
+				falsePositives++;
+			}
+		}
+		assertTrue("false positives: " + falsePositives, falsePositives < names / 50);
+
+		// Gravado e lido de volta, responde igual
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		filter.writeTo(new DataOutputStream(bytes));
+		BloomFilter read = BloomFilter.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+		for (int i = 0; i < names; i++) {
+			assertTrue(read.mightContain(StackUtils.strToMD5("file" + i)));
+			assertTrue(filter.mightContain(StackUtils.strToMD5("nofile" + i))
+					== read.mightContain(StackUtils.strToMD5("nofile" + i)));
+		}
+		assertFalse(new BloomFilter(16).mightContain(StackUtils.strToMD5("file0")));
+	}
+}
@@ -0,0 +1,37 @@
+package org.filestacker.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.Test;
+
+public class NameHasherTest {
+
+	@Test
+	public void testMD5() {
+		// Mesmos bytes de antes: as stacks antigas continuam legiveis
+		for (String name : new String[] { "", "file0", "a\u00e7\u00e3o/\u65e5\u672c.txt" }) {
+			assertArrayEquals(DigestUtils.md5(name), NameHasher.MD5.hash(name));
+		}
+		assertEquals(NameHasher.MD5, NameHasher.forId(0));
+	}
+
+	@Test
+	public void testMurmur3() {
+		// Vetores de referencia do MurmurHash3_x64_128, seed 0
+		assertEquals("00000000000000000000000000000000",
+				StackUtils.toHexadecimal(NameHasher.MURMUR3_128.hash("")).toLowerCase());
+		assertEquals("6c1b07bc7bbc4be347939ac4a93c437a",
+				StackUtils.toHexadecimal(NameHasher.MURMUR3_128.hash("The quick brown fox jumps over the lazy dog")).toLowerCase());
+
+		// Todos os tamanhos de cauda
+		String name = "0123456789abcdefghijklmnopqrstuvwxyz";
+		for (int i = 0; i < name.length(); i++) {
+			assertEquals(16, NameHasher.MURMUR3_128.hash(name.substring(0, i)).length);
+		}
+		assertEquals(NameHasher.MURMUR3_128, NameHasher.forId(1));
+		assertNull(NameHasher.forId(42));
+	}
+}
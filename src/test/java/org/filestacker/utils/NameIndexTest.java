@@ -0,0 +1,51 @@
+package org.filestacker.utils;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class NameIndexTest {
+
+	@Test
+	public void testPutGetRemove() {
+		NameIndex index = new NameIndex(16);
+		int names = 10000;
+
+		for (int i = 0; i < names; i++) {
+			assertEquals(NameIndex.NOT_FOUND, index.put(StackUtils.strToMD5("file" + i), i));
+		}
+		assertEquals(names, index.size());
+		assertEquals(7, index.put(StackUtils.strToMD5("file7"), 70));
+		assertEquals(names, index.size());
+
+		for (int i = 0; i < names; i++) {
+			assertEquals(i == 7 ? 70 : i, index.get(StackUtils.strToMD5("file" + i)));
+		}
+		assertEquals(NameIndex.NOT_FOUND, index.get(StackUtils.strToMD5("nofile")));
+
+		// Remove os pares: os impares continuam acessiveis
+		for (int i = 0; i < names; i += 2) {
+			index.remove(StackUtils.strToMD5("file" + i));
+		}
+		assertEquals(names / 2, index.size());
+		for (int i = 0; i < names; i++) {
+			int expected = (i % 2 == 0) ? NameIndex.NOT_FOUND : (i == 7 ? 70 : i);
+			assertEquals(expected, index.get(StackUtils.strToMD5("file" + i)));
+		}
+		assertEquals(NameIndex.NOT_FOUND, index.remove(StackUtils.strToMD5("file0")));
+	}
+
+	@Test
+	public void testCollisions() {
+		NameIndex index = new NameIndex();
+
+		// Hashes quase iguais, em clusters longos
+		for (int i = 0; i < 100; i++) {
+			index.put(i, 100 - i, i);
+		}
+		index.remove(50, 50);
+		for (int i = 0; i < 100; i++) {
+			assertEquals(i == 50 ? NameIndex.NOT_FOUND : i, index.get(i, 100 - i));
+		}
+	}
+}